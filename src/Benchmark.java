@@ -0,0 +1,310 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmark suite for the conversion, lookup and index paths
+ * @author Bohan Li
+ * Course: CSC 460
+ * Instructor: Lester McCann
+ *
+ * Usage java Benchmark [--scale N]... [--filter text] [--warmup N] [--iterations N] [--iteration-ms N] [csv path]
+ *
+ * Times the hot paths of the three programs on datasets scaled from SCDB2019.csv (or the given CSV): splitting the CSV
+ * with CsvTokenizer and with the regex it replaced, Prog1A.Data construction and outputToBin, Prog1B.BinaryFileDB get
+ * and query (decoded, and through a RowView), building a Prog2.Index and querying it with 1 to 6 digit prefixes, and
+ * adding to and reading HashBucketFile buckets. Each --scale N repeats every row of the CSV N times in place, so the
+ * scaled file keeps its date order; the default scales are 10 and 100. Scaled CSVs and their .bin files are kept next
+ * to the CSV and reused by later runs. Run it from a scratch directory: the converters and the index write out.csv and
+ * their hash files to the working directory. Scale 1000 needs several GB of disk and a heap (-Xmx) large enough for
+ * Data to hold the whole CSV.
+ *
+ * Every benchmark runs some warm-up iterations whose timings are thrown away, so they are taken after JIT compilation,
+ * followed by measured iterations. An iteration repeats the operation until iteration-ms have passed. The report gives
+ * the mean time per operation over the measured iterations and their standard deviation. Only benchmarks whose name
+ * contains the --filter text are run. Lookups and index queries draw their rows, days and prefixes from a Random with a
+ * fixed seed, so every run performs the same operations.
+ *
+ * System requirements: Java 8
+ */
+public class Benchmark {
+    private static final long SEED = 460; // seed of every random choice, so runs are repeatable
+    private static final int LOOKUPS_PER_OP = 1000; // gets or queries timed as one lookup operation
+
+    private static int warmupIterations = 3; // iterations run before measuring
+    private static int measuredIterations = 5; // iterations the score is taken over
+    private static long iterationNanos = 1000_000_000L; // minimum length of an iteration
+    private static String filter = ""; // text a benchmark name must contain to run
+    private static volatile long sink; // consumes results, so the JIT cannot drop the work producing them
+
+    public static void main(String args[]) throws IOException {
+        String csvFilename = "SCDB2019.csv"; // CSV the datasets are scaled from
+        List<Integer> scales = new ArrayList<>(); // scale factors to run at
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--scale") && i + 1 < args.length) scales.add(Integer.parseInt(args[++i]));
+            else if (args[i].equals("--filter") && i + 1 < args.length) filter = args[++i];
+            else if (args[i].equals("--warmup") && i + 1 < args.length) warmupIterations = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--iterations") && i + 1 < args.length) measuredIterations = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--iteration-ms") && i + 1 < args.length)
+                iterationNanos = Long.parseLong(args[++i]) * 1000_000L;
+            else csvFilename = args[i];
+        }
+        if (scales.isEmpty()) {
+            scales.add(10);
+            scales.add(100);
+        }
+        if (!new File(csvFilename).exists())
+            throw new RuntimeException("Usage java Benchmark [--scale N]... [--filter text] [--warmup N] [--iterations N] "
+                    + "[--iteration-ms N] [csv path]");
+
+        System.out.printf("%-28s %6s %8s %14s %14s  %s%n", "Benchmark", "Scale", "Rows", "Score", "Error", "Units");
+        for (int scale : scales) {
+            String scaledCsv = scale(csvFilename, scale);
+            String scaledBin = convert(scaledCsv);
+            runTokenizer(scaledCsv, scale);
+            runConversion(scaledCsv, scale);
+            runLookups(scaledBin, scale);
+            runIndex(scaledBin, scale);
+            runBucketFile(scale);
+        }
+    }
+
+    /**
+     * One timed operation. The returned value is consumed so the work behind it is not optimized away.
+     */
+    private interface Operation {
+        long run() throws Exception;
+    }
+
+    /**
+     * Runs the warm-up and measured iterations of one benchmark and prints its line of the report.
+     * @param name benchmark name
+     * @param scale scale of the dataset
+     * @param rows rows in the dataset
+     * @param operationsPerCall operations one call of the operation performs, to report the time of each
+     * @param operation operation to time
+     */
+    private static void measure(String name, int scale, int rows, int operationsPerCall, Operation operation) {
+        if (!name.contains(filter)) return;
+        double score[] = new double[measuredIterations]; // ns per operation of each measured iteration
+        try {
+            for (int iteration = -warmupIterations; iteration < measuredIterations; iteration++) {
+                long calls = 0, start = System.nanoTime(), elapsed;
+                do {
+                    sink += operation.run();
+                    calls++;
+                } while ((elapsed = System.nanoTime() - start) < iterationNanos);
+                if (iteration >= 0) score[iteration] = (double) elapsed / (calls * operationsPerCall);
+            }
+        } catch (Exception ex) {
+            System.out.println(name + " failed: " + ex);
+            return;
+        }
+
+        double mean = 0, variance = 0;
+        for (double value : score) mean += value / score.length;
+        for (double value : score) variance += (value - mean) * (value - mean) / Math.max(1, score.length - 1);
+        String units = "ns/op"; // larger scores are reported in coarser units
+        double divisor = 1;
+        if (mean >= 1e7) {
+            units = "ms/op";
+            divisor = 1e6;
+        } else if (mean >= 1e4) {
+            units = "us/op";
+            divisor = 1e3;
+        }
+        System.out.printf("%-28s %6d %8d %14.3f %14s  %s%n", name, scale, rows, mean / divisor,
+                String.format("+/- %.3f", Math.sqrt(variance) / divisor), units);
+    }
+
+    /******** Datasets **********/
+
+    /**
+     * Writes the CSV with every row repeated scale times in place, unless it was written before. Repeating a row in
+     * place keeps the rows sorted by date, so Prog1A keeps all of the copies.
+     * @param csvFilename CSV to scale
+     * @param scale copies of each row
+     * @return name of the scaled CSV
+     */
+    private static String scale(String csvFilename, int scale) throws IOException {
+        int extension = csvFilename.lastIndexOf('.');
+        String scaledCsv = (extension < 0 ? csvFilename : csvFilename.substring(0, extension)) + "_x" + scale + ".csv";
+        if (new File(scaledCsv).exists()) return scaledCsv;
+
+        File partial = new File(scaledCsv + ".tmp"); // renamed once complete, so an interrupted write is not reused
+        Prog1A.CsvTokenizer input = new Prog1A.CsvTokenizer(new BufferedReader(new FileReader(csvFilename)));
+        BufferedWriter output = new BufferedWriter(new FileWriter(partial), 1 << 16);
+        StringWriter record = new StringWriter(); // the current record, as CSV text
+        boolean header = true; // the first record names the fields and is written once
+        while (input.next()) {
+            record.getBuffer().setLength(0);
+            input.writeRecord(record);
+            record.write('\n');
+            for (int copy = 0; copy < (header ? 1 : scale); copy++) output.append(record.getBuffer());
+            header = false;
+        }
+        input.close();
+        output.close();
+        if (!partial.renameTo(new File(scaledCsv))) throw new IOException("Could not write " + scaledCsv);
+        return scaledCsv;
+    }
+
+    /**
+     * Converts a CSV to a row-major .bin with the bounded-memory converter, unless that was done before.
+     * @return name of the .bin
+     */
+    private static String convert(String csvFilename) throws IOException {
+        String binFilename = csvFilename.substring(0, csvFilename.lastIndexOf('.')) + ".bin";
+        File bin = new File(binFilename);
+        if (bin.exists() && bin.lastModified() >= new File(csvFilename).lastModified()) return binFilename;
+
+        RandomAccessFile output = new RandomAccessFile(bin, "rw");
+        output.setLength(0);
+        new Prog1A.StreamingConverter(csvFilename).outputToBin(output);
+        output.close();
+        return binFilename;
+    }
+
+    /******** Benchmarks **********/
+
+    /**
+     * Prog1A: splitting every record of the CSV with CsvTokenizer, and with the lookahead regex it replaced, which
+     * reads one line per record. Scores are per record.
+     */
+    private static void runTokenizer(final String csvFilename, int scale) throws IOException {
+        if (!"tokenize.regexSplit".contains(filter) && !"tokenize.csvTokenizer".contains(filter)) return;
+        final String legacySplit = ",(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)"; // splitter used before CsvTokenizer
+        Prog1A.CsvTokenizer counter = new Prog1A.CsvTokenizer(new FileReader(csvFilename));
+        int rows = 0; // records in the CSV, header included
+        while (counter.next()) rows++;
+        counter.close();
+
+        measure("tokenize.regexSplit", scale, rows, rows, () -> {
+            long fields = 0;
+            BufferedReader reader = new BufferedReader(new FileReader(csvFilename));
+            for (String line = reader.readLine(); line != null; line = reader.readLine())
+                fields += line.split(legacySplit).length;
+            reader.close();
+            return fields;
+        });
+        measure("tokenize.csvTokenizer", scale, rows, rows, () -> {
+            long fields = 0;
+            Prog1A.CsvTokenizer tokenizer = new Prog1A.CsvTokenizer(new FileReader(csvFilename));
+            while (tokenizer.next()) fields += tokenizer.getNumFields();
+            tokenizer.close();
+            return fields;
+        });
+    }
+
+    /**
+     * Prog1A: reading the CSV into Data, and writing Data out as a .bin.
+     */
+    private static void runConversion(final String csvFilename, int scale) throws IOException {
+        if (!"convert.data".contains(filter) && !"convert.outputToBin".contains(filter)) return;
+        final Prog1A.Data data = new Prog1A.Data(csvFilename); // converted once, for the write benchmark
+        int rows = data.getNumEntries();
+        measure("convert.data", scale, rows, 1, () -> new Prog1A.Data(csvFilename).getNumEntries());
+
+        final File bin = File.createTempFile("benchmark", ".bin");
+        bin.deleteOnExit();
+        measure("convert.outputToBin", scale, rows, 1, () -> {
+            RandomAccessFile output = new RandomAccessFile(bin, "rw");
+            output.setLength(0);
+            data.outputToBin(output);
+            long length = output.length();
+            output.close();
+            return length;
+        });
+        bin.delete();
+    }
+
+    /**
+     * Prog1B: random single-row gets, and queries for the dates of random rows.
+     */
+    private static void runLookups(String binFilename, int scale) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(new File(binFilename), "r");
+        final Prog1B.BinaryFileDB db = new Prog1B.BinaryFileDB(file);
+        final int rows = db.getNumEntries();
+        final int indices[] = new int[LOOKUPS_PER_OP], days[] = new int[LOOKUPS_PER_OP]; // rows to get, days to query
+        Random random = new Random(SEED);
+        for (int i = 0; i < LOOKUPS_PER_OP; i++) {
+            indices[i] = random.nextInt(rows);
+            days[i] = db.getDecisionDay(random.nextInt(rows));
+        }
+
+        measure("lookup.get", scale, rows, LOOKUPS_PER_OP, () -> {
+            long found = 0;
+            for (int index : indices) found += db.get(index).length;
+            return found;
+        });
+        measure("lookup.query", scale, rows, LOOKUPS_PER_OP, () -> {
+            long found = 0;
+            for (int day : days) found += db.query(day, 0, rows, Prog1B.PRINTED_FIELDS).size();
+            return found;
+        });
+        final long viewed[] = new long[1]; // entries passed to the view consumer
+        measure("lookup.queryView", scale, rows, LOOKUPS_PER_OP, () -> {
+            for (int day : days) db.query(day, day, entry -> viewed[0] += entry.getInt(Prog1B.DATEDECISION_INDEX));
+            return viewed[0];
+        });
+        file.close();
+    }
+
+    /**
+     * Prog2: bulk building the issue index, and querying it with prefixes of 1 to 6 digits of random rows' keys.
+     */
+    private static void runIndex(String binFilename, int scale) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(new File(binFilename), "r");
+        final Prog2.BinaryFileDB db = new Prog2.BinaryFileDB(file, true);
+        final int rows = db.getNumEntries();
+        measure("index.build", scale, rows, 1, () -> new Prog2.Index(db).getHashBucketFile().getNumBuckets());
+
+        final Prog2.Index index = new Prog2.Index(db); // built once, for the query benchmarks
+        final int keyField[] = {Prog2.Index.KEY_INDEX};
+        List<Integer> keys = new ArrayList<>(); // indexed keys of random rows
+        Random random = new Random(SEED);
+        while (keys.size() < LOOKUPS_PER_OP) {
+            Object key = db.get(random.nextInt(rows), keyField)[Prog2.Index.KEY_INDEX];
+            if (key instanceof Integer && (Integer) key >= 0) keys.add((Integer) key);
+        }
+        for (int digits = 1; digits <= Prog2.Index.KEY_DIGITS; digits++) {
+            final String prefixes[] = new String[keys.size()]; // the keys cut to this many digits
+            for (int i = 0; i < prefixes.length; i++)
+                prefixes[i] = String.format("%0" + Prog2.Index.KEY_DIGITS + "d", keys.get(i)).substring(0, digits);
+            // short prefixes match a large share of the rows, so fewer of them are run per operation
+            final int queries = Math.max(1, prefixes.length >> Math.max(0, 2 * (Prog2.Index.KEY_DIGITS - digits) - 2));
+            measure("index.query." + digits + "digit", scale, rows, queries, () -> {
+                long found = 0;
+                for (int i = 0; i < queries; i++) found += index.query(prefixes[i]).size();
+                return found;
+            });
+        }
+        file.close();
+    }
+
+    /**
+     * Prog2: filling a bucket one entry at a time, and reading it back whole. Neither depends on the dataset.
+     */
+    private static void runBucketFile(int scale) {
+        final Prog2.HashBucketFile bucketFile = new Prog2.HashBucketFile("benchmark_bucket_file.bin");
+        final int entries = Prog2.Bucket.BUCKET_MAX_ENTRIES; // entries added per bucket
+        final int bucket = bucketFile.createBucket(Prog2.Index.KEY_DIGITS); // bucket every operation refills
+        final Random random = new Random(SEED);
+        measure("bucket.add", scale, entries, entries, () -> {
+            bucketFile.replaceBucket(bucket, Prog2.Index.KEY_DIGITS, new long[0], 0, 0); // empty it again
+            for (int i = 0; i < entries; i++)
+                bucketFile.addElementToBucket(bucket, new Prog2.BucketEntry(random.nextInt(1000000), i));
+            return bucket;
+        });
+        measure("bucket.get", scale, entries, 1, () -> bucketFile.getBucket(bucket).size());
+        new File("benchmark_bucket_file.bin").delete();
+    }
+}
@@ -1,9 +1,24 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Date;
-import java.util.TreeSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * Code for part A of program 1.
@@ -11,14 +26,66 @@ import java.util.TreeSet;
  */
 public class Prog1A {
     public static void main(String args[]) throws IOException {
-        if (args == null || args.length < 1) throw new RuntimeException("Usage java Prog1A [file path]");
-        String inputFilename = args[0];
+        String inputFilename = null;
+        boolean streaming = false; // convert in one bounded-memory pass instead of loading the whole CSV
+        boolean parallel = false; // parse and encode chunks of the CSV on all cores
+        boolean columnar = false; // write the column-major .bin layout instead of the row-major one
+        String appendFilename = null; // existing bin file to append the CSV's rows to
+        for (int i = 0; args != null && i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--stream")) streaming = true;
+            else if (arg.equals("--parallel")) parallel = true;
+            else if (arg.equals("--columnar")) columnar = true;
+            else if (arg.equals("--append") && i + 1 < args.length) appendFilename = args[++i];
+            else inputFilename = arg;
+        }
+        if (inputFilename == null)
+            throw new RuntimeException("Usage java Prog1A [--stream | --parallel | --columnar | --append bin path] "
+                    + "[file path]");
+        if (columnar && (streaming || parallel))
+            throw new RuntimeException("--columnar is only supported by the default in-memory conversion");
+        if (appendFilename != null) {
+            Appender appender = new Appender(appendFilename);
+            int oldNumEntries = appender.getNumEntries(); // rows before the append
+            long oldLength = new File(appendFilename).length(); // file length before the append
+            long oldModified = new File(appendFilename).lastModified(); // last-modified time before the append
+            int appended = 0; // rows added to the bin file
+            try {
+                appended = appender.append(inputFilename);
+            } catch (IOException ex) {
+                System.out.println("Append failed, " + appendFilename + " was not changed:\n\t" + ex.getMessage());
+                System.exit(-1);
+            }
+            System.out.println("Appended " + appended + " rows to " + appendFilename
+                    + (appender.isRewritten() ? ", rewriting it with wider fields" : ""));
+            if (appender.isRewritten()) Prog1B.FenceIndex.writeFor(appendFilename);
+            else Prog1B.FenceIndex.appendFor(appendFilename, oldNumEntries, oldLength, oldModified);
+            return;
+        }
         String outputFilename = removeExtension(getBaseNameFromPath(inputFilename)) + ".bin";
 
-        Data data = new Data(inputFilename);
-        RandomAccessFile output = new RandomAccessFile(new File(outputFilename),"rw");
-        data.outputToBin(output);
-        output.close();
+        if (parallel) {
+            ParallelConverter converter = new ParallelConverter(inputFilename);
+            RandomAccessFile output = new RandomAccessFile(new File(outputFilename),"rw");
+            output.setLength(0);
+            converter.outputToBin(output);
+            output.close();
+        } else if (streaming) {
+            StreamingConverter converter = new StreamingConverter(inputFilename);
+            RandomAccessFile output = new RandomAccessFile(new File(outputFilename),"rw");
+            output.setLength(0);
+            converter.outputToBin(output);
+            output.close();
+        } else {
+            Data data = new Data(inputFilename);
+            RandomAccessFile output = new RandomAccessFile(new File(outputFilename),"rw");
+            output.setLength(0);
+            if (columnar) data.outputToColumnarBin(output);
+            else data.outputToBin(output);
+            output.close();
+        }
+        // sparse date index Prog1B loads to search the sorted rows in memory
+        Prog1B.FenceIndex.writeFor(outputFilename);
     }
 
     /******** File utility Functions **********/
@@ -32,91 +99,102 @@ public class Prog1A {
     }
 
     /**
-     * Class for storing all data in the CSV file.
+     * Class for storing all data in the CSV file. Data is held column by column in primitive arrays rather than as
+     * boxed cells, so numeric values cost 4 bytes and string values cost one byte per character.
      */
     public static class Data {
-        private String fieldNames[];
-        private boolean fieldIsString[];
-        private Object data[];
-        private int maxFieldSize[];
-        private int numDataEntries;
+        private Schema schema;
         private int numEntries;
 
+        // column store: intColumns[i] holds field i when it is numeric or a date, otherwise stringBytes[i] holds the
+        // values of field i back to back, one byte per char, with row j at [stringOffsets[i][j], stringOffsets[i][j + 1])
+        private int intColumns[][];
+        private byte stringBytes[][];
+        private int stringOffsets[][];
+
         public static DateFormat DATE_FORMAT = new SimpleDateFormat("MM/dd/yyyy");
+        public static final int COLUMNAR_MAGIC = 0x434f4c31; // "COL1", first int of a column-major bin file
+        public static final int DATEDECISION_INDEX = 4; // field the kept rows are sorted on
+
+        /**
+         * The rule every converter, the appender and the generator keep rows by, so they all keep the same ones: the
+         * row's dateDecision must be a whole M/d/yyyy date (CsvTokenizer.isDateField) that is not before the
+         * previous kept row's.
+         *
+         * @param input tokenizer holding the row
+         * @param previousDay decision date of the previous kept row as an epoch day, or Schema.BLANK_DATE if none
+         * @return true if the row is kept
+         */
+        public static boolean keepRow(CsvTokenizer input, long previousDay) {
+            return input.isDateField(DATEDECISION_INDEX) && input.getEpochDayField(DATEDECISION_INDEX) >= previousDay;
+        }
 
         /**
-         * Constructor based on a CSV file. Assumes each line in the CSV has at least as many
-         * elements as the first line, which declares the fields.
+         * Constructor based on a CSV file. The first record declares the fields; records with fewer
+         * fields are treated as having empty values for the missing ones.
          *
          * @param csvFilename name of the CSV file
          */
         public Data(String csvFilename) {
             try {
-                BufferedReader input = new BufferedReader(new FileReader(csvFilename));
-                String line = input.readLine();
-                fieldNames = line.split(",");
-                fieldIsString = new boolean[fieldNames.length];
-                maxFieldSize = new int[fieldNames.length];
-                numDataEntries = 0;
-                Date previous = new Date(Long.MIN_VALUE);
-
-                TreeSet<Integer> lineIsOut = new TreeSet<>();
+                CsvTokenizer input = new CsvTokenizer(new FileReader(csvFilename));
+                input.next();
+                schema = Schema.fromHeader(input);
+                int previous = Schema.BLANK_DATE; // decision date of the last kept row
+
+                BitSet lineIsOut = new BitSet();
                 int lineCounter = -1;
                 numEntries = 0;
-                while((line = input.readLine()) != null) {
+                while(input.next()) {
                     lineCounter++;
-                    String dataValues[] = line.split(",(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)");
 
-                    try {
-                        Date thisDate = DATE_FORMAT.parse(dataValues[4]);
-                        if (previous.after(thisDate)) {
-                            lineIsOut.add(lineCounter);
-                            continue;
-                        }
-                        previous = thisDate;
-                    } catch (ParseException | ArrayIndexOutOfBoundsException ex) {
-                        lineIsOut.add(lineCounter);
+                    if (!keepRow(input, previous)) {
+                        lineIsOut.set(lineCounter);
                         continue;
                     }
-                    numDataEntries += fieldNames.length;
-                    for (int i = 0; i < fieldNames.length; i++) {
-                        try {
-                            Integer.parseInt(dataValues[i]);
-                        } catch (NumberFormatException ex) {
-                            if (dataValues[i].length() != 0) {
-                                fieldIsString[i] = true;
-                                maxFieldSize[i] = Math.max(maxFieldSize[i], dataValues[i].length());
-                            }
-                        }
-                    }
+                    previous = input.getEpochDayField(DATEDECISION_INDEX);
+                    schema.observe(input);
                     numEntries++;
                 }
                 input.close();
 
-                PrintWriter output = new PrintWriter(new File("out.csv"));
-                data = new Object[numDataEntries];
+                intColumns = new int[schema.getNumFields()][];
+                stringBytes = new byte[schema.getNumFields()][];
+                stringOffsets = new int[schema.getNumFields()][];
+                for (int i = 0; i < schema.getNumFields(); i++) {
+                    if (schema.getType(i) != Schema.TYPE_STRING) intColumns[i] = new int[numEntries];
+                    else if (schema.getTotalFieldSize(i) > Integer.MAX_VALUE - 8)
+                        throw new IOException("Field " + schema.getFieldName(i) + " is too large to hold in memory");
+                    else {
+                        stringBytes[i] = new byte[(int) schema.getTotalFieldSize(i)];
+                        stringOffsets[i] = new int[numEntries + 1];
+                    }
+                }
 
-                input = new BufferedReader(new FileReader(csvFilename));
-                input.readLine();
-                int entryIndex = 0;
+                PrintWriter output = new PrintWriter(new File("out.csv"));
+                input = new CsvTokenizer(new FileReader(csvFilename));
+                input.next();
+                int row = 0;
                 lineCounter = -1;
-                while((line = input.readLine()) != null) {
+                while(input.next()) {
                     lineCounter++;
-                    if (lineIsOut.contains(lineCounter)) continue;
-                    output.write(line + "\n");
-                    String dataValues[] = line.split(",(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)");
-                    for (int i = 0; i < fieldNames.length; i++) {
-                        if (fieldIsString[i]) {
-                            data[entryIndex] = String.format("%-" + maxFieldSize[i] + "s", dataValues[i]);
-                        } else {
-                            try {
-                                data[entryIndex] = Integer.parseInt(dataValues[i]);
-                            } catch (NumberFormatException ex) {
-                                data[entryIndex] = -1;
-                            }
+                    if (lineIsOut.get(lineCounter)) continue;
+                    input.writeRecord(output);
+                    output.write("\n");
+                    for (int i = 0; i < schema.getNumFields(); i++) {
+                        switch (schema.getType(i)) {
+                            case Schema.TYPE_STRING:
+                                int start = stringOffsets[i][row];
+                                stringOffsets[i][row + 1] = start + input.getFieldBytes(i, stringBytes[i], start);
+                                break;
+                            case Schema.TYPE_DATE:
+                                intColumns[i][row] = input.getEpochDayField(i);
+                                break;
+                            default:
+                                intColumns[i][row] = input.getIntField(i, -1);
                         }
-                        entryIndex++;
                     }
+                    row++;
                 }
                 output.close();
                 input.close();
@@ -127,26 +205,595 @@ public class Prog1A {
             }
         }
 
+        public int getNumEntries() {
+            return numEntries;
+        }
+
+        public Schema getSchema() {
+            return schema;
+        }
+
+        /**
+         * @return value of a numeric field (-1 if it was blank), or of a date field as an epoch day
+         */
+        public int getInt(int row, int field) {
+            return intColumns[field][row];
+        }
+
+        /**
+         * @return value of a string field, without the padding it gets in the bin file
+         */
+        public String getString(int row, int field) {
+            int start = stringOffsets[field][row];
+            return new String(stringBytes[field], start, stringOffsets[field][row + 1] - start, StandardCharsets.ISO_8859_1);
+        }
+
         /**
          * Writes the data represented by the object into a bin file. Field names are not written.
          * @param output stream of bin file
          */
         public void outputToBin(RandomAccessFile output) {
             try {
-                output.writeInt(fieldNames.length);
-                output.writeInt(numEntries);
+                // shares the RAF's descriptor, so writing starts at the RAF's current position
+                DataOutputStream bin = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output.getFD()), 1 << 16));
+                schema.writeHeader(bin, numEntries);
+
+                for (int j = 0; j < numEntries; j++) {
+                    for (int i = 0; i < schema.getNumFields(); i++) writeValue(bin, j, i);
+                }
+                bin.flush();
+            } catch (IOException ex) {
+                System.out.println("I/O ERROR: Couldn't write to the file;\n\t"
+                        + "perhaps the file system is full?");
+                System.exit(-1);
+            }
+        }
+
+        /**
+         * Writes the data into a column-major bin file: every value of field 0, then every value of field 1, and so
+         * on, encoded the same way as in outputToBin. Readers can then fetch a single field of a row, or scan one
+         * field of every row, without touching the rest. Field names are not written.
+         *
+         * Header:
+         * 4 bytes ------ COLUMNAR_MAGIC
+         * 4 bytes ------ number of fields
+         * 4 bytes ------ number of rows
+         * per field: 1 byte type tag, 4 bytes max field size, 8 bytes file offset of the field's column
+         *
+         * @param output stream of bin file
+         */
+        public void outputToColumnarBin(RandomAccessFile output) {
+            try {
+                DataOutputStream bin = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output.getFD()), 1 << 16));
+                bin.writeInt(COLUMNAR_MAGIC);
+                bin.writeInt(schema.getNumFields());
+                bin.writeInt(numEntries);
+
+                long columnStart = output.getFilePointer() + 12 + 13L * schema.getNumFields(); // first byte after the header
+                for (int i = 0; i < schema.getNumFields(); i++) {
+                    bin.writeByte(schema.getType(i));
+                    bin.writeInt(schema.getMaxFieldSize(i));
+                    bin.writeLong(columnStart);
+                    columnStart += (long) numEntries * schema.getStoredSize(i);
+                }
+
+                for (int i = 0; i < schema.getNumFields(); i++) {
+                    for (int j = 0; j < numEntries; j++) writeValue(bin, j, i);
+                }
+                bin.flush();
+            } catch (IOException ex) {
+                System.out.println("I/O ERROR: Couldn't write to the file;\n\t"
+                        + "perhaps the file system is full?");
+                System.exit(-1);
+            }
+        }
+
+        private void writeValue(DataOutput bin, int row, int field) throws IOException {
+            if (schema.getType(field) == Schema.TYPE_STRING) {
+                int start = stringOffsets[field][row], length = stringOffsets[field][row + 1] - start;
+                bin.write(stringBytes[field], start, length);
+                for (int pad = length; pad < schema.getMaxFieldSize(field); pad++) bin.write(' ');
+            }
+            else bin.writeInt(intColumns[field][row]);
+        }
+    }
+
+    /**
+     * Field types and widths inferred from the kept rows of a CSV, shared by the converters. A field is a date if
+     * every non-blank value looks like M/d/yyyy, a string if any other non-blank value is not an int, and an int
+     * otherwise. Dates are stored as 4-byte epoch days; their max field size is still the longest text, which
+     * readers use to pad the formatted date.
+     */
+    public static class Schema {
+        // type tags written per field in the bin header; files written before dates were typed use only the first two
+        public static final int TYPE_INT = 0, TYPE_STRING = 1, TYPE_DATE = 2;
+        public static final int BLANK_DATE = Integer.MIN_VALUE; // stored for a blank date, since epoch days may be negative
+
+        private final String fieldNames[];
+        private final boolean fieldIsString[];   // some non-blank value is not an int
+        private final boolean fieldHasDate[];    // some value looks like a date
+        private final boolean fieldHasNonDate[]; // some non-blank value does not look like a date
+        private final int maxFieldSize[];        // length of the longest non-int value
+        private final long totalFieldSize[];     // summed length of every value
+
+        public Schema(String fieldNames[]) {
+            this.fieldNames = fieldNames;
+            fieldIsString = new boolean[fieldNames.length];
+            fieldHasDate = new boolean[fieldNames.length];
+            fieldHasNonDate = new boolean[fieldNames.length];
+            maxFieldSize = new int[fieldNames.length];
+            totalFieldSize = new long[fieldNames.length];
+        }
+
+        /**
+         * @param header tokenizer positioned on the CSV's header record
+         * @return an empty schema with the header's field names
+         */
+        public static Schema fromHeader(CsvTokenizer header) {
+            String fieldNames[] = new String[header.getNumFields()];
+            for (int i = 0; i < fieldNames.length; i++) fieldNames[i] = header.getField(i);
+            return new Schema(fieldNames);
+        }
+
+        /**
+         * Reads the field types and widths back from a row-major bin header, after its field and row counts. The
+         * bin file does not keep field names, so the fields are named by position.
+         * @param input bin file positioned just after the row count
+         * @param numFields number of fields the header declares
+         */
+        public static Schema fromBinHeader(DataInput input, int numFields) throws IOException {
+            String fieldNames[] = new String[numFields];
+            for (int i = 0; i < numFields; i++) fieldNames[i] = "field " + i;
+            Schema schema = new Schema(fieldNames);
+            for (int i = 0; i < numFields; i++) {
+                int type = input.readByte();
+                schema.fieldIsString[i] = type == TYPE_STRING;
+                schema.fieldHasDate[i] = type == TYPE_DATE;
+                schema.maxFieldSize[i] = input.readInt();
+            }
+            return schema;
+        }
+
+        /**
+         * @return a schema with the same field names, types and widths, which can be widened separately
+         */
+        public Schema copy() {
+            Schema copy = new Schema(fieldNames);
+            for (int i = 0; i < fieldNames.length; i++) {
+                copy.fieldIsString[i] = fieldIsString[i];
+                copy.fieldHasDate[i] = fieldHasDate[i];
+                copy.fieldHasNonDate[i] = fieldHasNonDate[i];
+                copy.maxFieldSize[i] = maxFieldSize[i];
+                copy.totalFieldSize[i] = totalFieldSize[i];
+            }
+            return copy;
+        }
+
+        /**
+         * Grows the widths of string and date fields to hold the tokenizer's current record, as observe would, but
+         * never changes a field's type.
+         * @return false if a value of the record cannot be stored as its field's type
+         */
+        public boolean widen(CsvTokenizer input) {
+            for (int i = 0; i < fieldNames.length; i++) {
+                int length = input.getFieldLength(i);
+                if (length == 0) continue;
+                switch (getType(i)) {
+                    case TYPE_STRING:
+                        if (input.isIntField(i)) continue; // observe does not count int values in the width
+                        break;
+                    case TYPE_DATE:
+                        if (!input.isDateField(i)) return false;
+                        break;
+                    default:
+                        if (!input.isIntField(i)) return false;
+                        continue;
+                }
+                maxFieldSize[i] = Math.max(maxFieldSize[i], length);
+            }
+            return true;
+        }
+
+        /**
+         * @return true if every field has the same type and width in both schemas
+         */
+        public boolean sameLayout(Schema other) {
+            for (int i = 0; i < fieldNames.length; i++) {
+                if (getType(i) != other.getType(i) || maxFieldSize[i] != other.maxFieldSize[i]) return false;
+            }
+            return true;
+        }
+
+        /**
+         * Updates the inferred types and widths with the tokenizer's current record.
+         */
+        public void observe(CsvTokenizer input) {
+            for (int i = 0; i < fieldNames.length; i++) {
+                int length = input.getFieldLength(i);
+                if (length != 0) {
+                    if (input.isDateField(i)) fieldHasDate[i] = true;
+                    else fieldHasNonDate[i] = true;
+                }
+                if (!input.isIntField(i) && length != 0) {
+                    fieldIsString[i] = true;
+                    maxFieldSize[i] = Math.max(maxFieldSize[i], length);
+                }
+                totalFieldSize[i] += length;
+            }
+        }
+
+        /**
+         * Folds in what another schema over the same fields observed.
+         */
+        public void merge(Schema other) {
+            for (int i = 0; i < fieldNames.length; i++) {
+                fieldIsString[i] |= other.fieldIsString[i];
+                fieldHasDate[i] |= other.fieldHasDate[i];
+                fieldHasNonDate[i] |= other.fieldHasNonDate[i];
+                maxFieldSize[i] = Math.max(maxFieldSize[i], other.maxFieldSize[i]);
+                totalFieldSize[i] += other.totalFieldSize[i];
+            }
+        }
+
+        public int getNumFields() {
+            return fieldNames.length;
+        }
+
+        public String getFieldName(int field) {
+            return fieldNames[field];
+        }
+
+        public int getType(int field) {
+            if (fieldHasDate[field] && !fieldHasNonDate[field]) return TYPE_DATE;
+            return fieldIsString[field] ? TYPE_STRING : TYPE_INT;
+        }
+
+        public int getMaxFieldSize(int field) {
+            return maxFieldSize[field];
+        }
+
+        public long getTotalFieldSize(int field) {
+            return totalFieldSize[field];
+        }
+
+        /**
+         * @return bytes a value of the field takes in the bin file
+         */
+        public int getStoredSize(int field) {
+            return getType(field) == TYPE_STRING ? maxFieldSize[field] : 4;
+        }
+
+        /**
+         * @return bytes a row takes in a row-major bin file
+         */
+        public int getEntrySize() {
+            int entrySize = 0;
+            for (int i = 0; i < fieldNames.length; i++) entrySize += getStoredSize(i);
+            return entrySize;
+        }
 
-                for (int i = 0; i < fieldNames.length; i++) {
-                    output.writeBoolean(fieldIsString[i]);
-                    output.writeInt(maxFieldSize[i]);
+        /**
+         * Writes the row-major bin header: field count, row count, then each field's type tag and max field size.
+         */
+        public void writeHeader(DataOutput output, int numEntries) throws IOException {
+            output.writeInt(fieldNames.length);
+            output.writeInt(numEntries);
+            for (int i = 0; i < fieldNames.length; i++) {
+                output.writeByte(getType(i));
+                output.writeInt(maxFieldSize[i]);
+            }
+        }
+
+        /**
+         * Encodes field i of the tokenizer's current record as it is stored in the bin file.
+         */
+        public void writeField(CsvTokenizer input, int i, DataOutput output) throws IOException {
+            switch (getType(i)) {
+                case TYPE_STRING:
+                    input.writeFieldBytes(i, output);
+                    for (int pad = input.getFieldLength(i); pad < maxFieldSize[i]; pad++) output.write(' ');
+                    break;
+                case TYPE_DATE:
+                    output.writeInt(input.getEpochDayField(i));
+                    break;
+                default:
+                    output.writeInt(input.getIntField(i, -1));
+            }
+        }
+
+        /**
+         * @return the epoch day a date parsed by Data.DATE_FORMAT falls on, in the default time zone
+         */
+        public static int toEpochDay(Date date) {
+            return (int) date.toInstant().atZone(ZoneId.systemDefault()).toLocalDate().toEpochDay();
+        }
+
+        /**
+         * @return the epoch day as M/d/yyyy text, or an empty string for BLANK_DATE
+         */
+        public static String formatEpochDay(int epochDay) {
+            if (epochDay == BLANK_DATE) return "";
+            LocalDate date = LocalDate.ofEpochDay(epochDay);
+            return date.getMonthValue() + "/" + date.getDayOfMonth() + "/" + date.getYear();
+        }
+    }
+
+    /**
+     * Appends the rows of a CSV to an existing row-major bin file instead of converting everything again. Rows are
+     * kept by Data.keepRow, the rule every converter uses, starting from the last row already in the file.
+     *
+     * The CSV is read twice. The first pass checks that every kept row can be stored with the file's field types and
+     * works out the widths the rows need; if a value cannot be stored as its field's type (text in a numeric or date
+     * column), the append is refused before anything is written. When the kept rows fit the file's widths, they are
+     * written after the last row and synced before the row count in the header is updated with a single 4-byte
+     * write, so a reader sees either the old rows or all of the new ones; anything left past the last row by an
+     * interrupted append is overwritten. When some string is wider than its field, every row is instead written to a
+     * new file with the widened fields, which then replaces the bin file with an atomic rename, so no row is lost.
+     * Either way, kept rows are also appended to out.csv.
+     */
+    public static class Appender {
+        private static final int DATEDECISION_INDEX = 4; // field the rows are sorted on
+
+        private final String binFilename;
+        private Schema schema;
+        private int numEntries;  // rows in the bin file
+        private long dataStart;  // position of the first row
+        private int lastDay;     // decision date of the last row, as an epoch day
+        private boolean rewritten; // the last append replaced the file to widen its fields
+
+        /**
+         * @param binFilename row-major bin file with typed dates, as written by this program
+         */
+        public Appender(String binFilename) throws IOException {
+            this.binFilename = binFilename;
+            RandomAccessFile bin = new RandomAccessFile(new File(binFilename), "r");
+            int numFields = bin.readInt();
+            if (numFields == Data.COLUMNAR_MAGIC)
+                throw new IOException("Appending to a column-major bin file is not supported; convert it again");
+            numEntries = bin.readInt();
+            schema = Schema.fromBinHeader(bin, numFields);
+            dataStart = bin.getFilePointer();
+            if (schema.getType(DATEDECISION_INDEX) != Schema.TYPE_DATE)
+                throw new IOException("Bin files that store dates as text cannot be appended to; convert it again");
+            lastDay = Integer.MIN_VALUE;
+            if (numEntries > 0) {
+                long position = dataStart + (long) (numEntries - 1) * schema.getEntrySize();
+                for (int i = 0; i < DATEDECISION_INDEX; i++) position += schema.getStoredSize(i);
+                bin.seek(position);
+                lastDay = bin.readInt();
+            }
+            bin.close();
+        }
+
+        public int getNumEntries() {
+            return numEntries;
+        }
+
+        /**
+         * @return true if the last append rewrote the whole file with wider fields instead of adding rows to it
+         */
+        public boolean isRewritten() {
+            return rewritten;
+        }
+
+        /**
+         * Appends the kept rows of a CSV whose first record names the same fields as the bin file.
+         * @param csvFilename CSV holding the new rows
+         * @return the number of rows appended
+         * @throws IOException if the CSV does not match the bin file's fields, or a kept row has a value its field's
+         * type cannot store; the bin file is then left untouched
+         */
+        public int append(String csvFilename) throws IOException {
+            // first pass: check every kept row and find the widths they need
+            Schema wider = schema.copy(); // the file's schema, widened to hold the kept rows
+            CsvTokenizer input = openCsv(csvFilename);
+            int day = lastDay, lineCounter = 0, numKept = 0; // decision date of the last kept row, records read, rows kept
+            while (input.next()) {
+                lineCounter++;
+                if (!Data.keepRow(input, day)) continue;
+                day = input.getEpochDayField(DATEDECISION_INDEX);
+                numKept++;
+                if (!wider.widen(input)) {
+                    input.close();
+                    throw new IOException("Line " + lineCounter + " of " + csvFilename + " has a value its field's type "
+                            + "in " + binFilename + " cannot store; convert the whole CSV again instead");
                 }
+            }
+            input.close();
 
+            rewritten = !schema.sameLayout(wider);
+            int appended = rewritten ? rewrite(csvFilename, wider, numKept) : appendInPlace(csvFilename);
+            numEntries += appended;
+            return appended;
+        }
+
+        /**
+         * Writes the kept rows after the last row, then counts them in the header.
+         * @return the number of rows appended
+         */
+        private int appendInPlace(String csvFilename) throws IOException {
+            RandomAccessFile bin = new RandomAccessFile(new File(binFilename), "rw");
+            long dataEnd = dataStart + (long) numEntries * schema.getEntrySize(); // first byte after the last row
+            bin.setLength(dataEnd);
+            bin.seek(dataEnd);
+            // shares the RAF's descriptor, so writing starts at the RAF's current position
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(bin.getFD()), 1 << 16));
+            int appended = writeRows(csvFilename, schema, output);
+            output.flush();
+
+            // rows must be durable before the header counts them
+            bin.getFD().sync();
+            bin.seek(4);
+            bin.writeInt(numEntries + appended);
+            bin.getFD().sync();
+            bin.close();
+            return appended;
+        }
+
+        /**
+         * Writes the file's rows and then the kept rows to a new file laid out with the wider schema, and renames it
+         * over the bin file.
+         * @param numKept number of rows the CSV adds
+         * @return the number of rows appended
+         */
+        private int rewrite(String csvFilename, Schema wider, int numKept) throws IOException {
+            File binFile = new File(binFilename), newFile = new File(binFilename + ".tmp"); // old and new bin files
+            DataInputStream oldRows = new DataInputStream(new BufferedInputStream(new FileInputStream(binFile), 1 << 16));
+            oldRows.readFully(new byte[(int) dataStart]); // header, replaced by the wider one
+            FileOutputStream newStream = new FileOutputStream(newFile);
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(newStream, 1 << 16));
+            wider.writeHeader(output, numEntries + numKept);
+
+            byte value[] = new byte[schema.getEntrySize()]; // one stored value of an old row
+            for (int row = 0; row < numEntries; row++) {
+                for (int i = 0; i < schema.getNumFields(); i++) {
+                    int size = schema.getStoredSize(i); // bytes of the value in the old file
+                    oldRows.readFully(value, 0, size);
+                    output.write(value, 0, size);
+                    for (int pad = size; pad < wider.getStoredSize(i); pad++) output.write(' ');
+                }
+            }
+            oldRows.close();
+            int appended = writeRows(csvFilename, wider, output);
+            if (appended != numKept) throw new IOException(csvFilename + " changed during the append");
+            output.flush();
+            newStream.getFD().sync();
+            output.close();
+
+            Files.move(newFile.toPath(), binFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            schema = wider;
+            return appended;
+        }
+
+        /**
+         * Encodes the kept rows of the CSV with the given schema and appends them to out.csv.
+         * @return the number of rows written
+         */
+        private int writeRows(String csvFilename, Schema target, DataOutput output) throws IOException {
+            CsvTokenizer input = openCsv(csvFilename);
+            PrintWriter csvOutput = new PrintWriter(new BufferedWriter(new FileWriter("out.csv", true)));
+            int appended = 0;
+            while (input.next()) {
+                if (!Data.keepRow(input, lastDay)) continue;
+                lastDay = input.getEpochDayField(DATEDECISION_INDEX);
+                for (int i = 0; i < target.getNumFields(); i++) target.writeField(input, i, output);
+                input.writeRecord(csvOutput);
+                csvOutput.write("\n");
+                appended++;
+            }
+            input.close();
+            csvOutput.close();
+            return appended;
+        }
+
+        /**
+         * @return a tokenizer positioned on the CSV's header record, which must have as many fields as the bin file
+         */
+        private CsvTokenizer openCsv(String csvFilename) throws IOException {
+            CsvTokenizer input = new CsvTokenizer(new FileReader(csvFilename));
+            input.next();
+            if (input.getNumFields() != schema.getNumFields()) {
+                input.close();
+                throw new IOException("CSV has " + input.getNumFields() + " fields, the bin file has " + schema.getNumFields());
+            }
+            return input;
+        }
+    }
+
+    /**
+     * Bounded-memory alternative to Data. The CSV is read once; every kept row is appended to a temporary spill file
+     * as raw cell bytes while the field types and widths are inferred. Once the schema is known, outputToBin writes the
+     * header and then streams the spilled rows out padded to their final widths, so heap use does not grow with the
+     * size of the CSV. Produces the same .bin (and out.csv) as Data.
+     */
+    public static class StreamingConverter {
+        private static final int BUFFER_SIZE = 1 << 16; // size of the spill and output stream buffers, bytes
+
+        private Schema schema;
+        private int numEntries;
+        private File spillFile; // rows kept from the CSV, as a sequence of length-prefixed cell bytes
+        private int maxCellLength; // length of the longest spilled cell, in bytes
+
+        /**
+         * Reads the CSV in a single pass, filtering out-of-order rows exactly like Data and spilling the kept ones.
+         *
+         * @param csvFilename name of the CSV file
+         */
+        public StreamingConverter(String csvFilename) {
+            try {
+                spillFile = File.createTempFile("prog1a", ".spill");
+                spillFile.deleteOnExit();
+                CsvTokenizer input = new CsvTokenizer(new FileReader(csvFilename));
+                DataOutputStream spill = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile), BUFFER_SIZE));
+                PrintWriter output = new PrintWriter(new BufferedWriter(new FileWriter("out.csv")));
+
+                input.next();
+                schema = Schema.fromHeader(input);
+                numEntries = 0;
+                int previous = Schema.BLANK_DATE; // decision date of the last kept row
+
+                while (input.next()) {
+                    if (!Data.keepRow(input, previous)) continue;
+                    previous = input.getEpochDayField(Data.DATEDECISION_INDEX);
+                    input.writeRecord(output);
+                    output.write("\n");
+                    schema.observe(input);
+                    for (int i = 0; i < schema.getNumFields(); i++) {
+                        spill.writeInt(input.getFieldLength(i));
+                        input.writeFieldBytes(i, spill);
+                        maxCellLength = Math.max(maxCellLength, input.getFieldLength(i));
+                    }
+                    numEntries++;
+                }
+                spill.close();
+                output.close();
+                input.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                System.out.println("I/O ERROR: Couldn't read from the file, or file was corrupt");
+                System.exit(-1);
+            }
+        }
+
+        /**
+         * Writes the header followed by every spilled row, padded to the inferred widths, then deletes the spill
+         * file. Field names are not written.
+         * @param output stream of bin file
+         */
+        public void outputToBin(RandomAccessFile output) {
+            try {
+                DataInputStream spill = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile), BUFFER_SIZE));
+                // shares the RAF's descriptor, so writing starts at the RAF's current position
+                DataOutputStream bin = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output.getFD()), BUFFER_SIZE));
+
+                schema.writeHeader(bin, numEntries);
+
+                byte value[] = new byte[maxCellLength]; // reused for every spilled cell
+                char text[] = new char[maxCellLength]; // the cell widened to chars, for parsing numbers and dates
                 for (int j = 0; j < numEntries; j++) {
-                    for (int i = 0; i < fieldNames.length; i++) {
-                        if (fieldIsString[i]) output.writeBytes((String) data[fieldNames.length*j + i]);
-                        else output.writeInt((Integer) data[fieldNames.length*j + i]);
+                    for (int i = 0; i < schema.getNumFields(); i++) {
+                        int length = spill.readInt();
+                        spill.readFully(value, 0, length);
+                        switch (schema.getType(i)) {
+                            case Schema.TYPE_STRING:
+                                bin.write(value, 0, length);
+                                for (int pad = length; pad < schema.getMaxFieldSize(i); pad++) bin.write(' ');
+                                break;
+                            case Schema.TYPE_DATE:
+                                for (int pos = 0; pos < length; pos++) text[pos] = (char) (value[pos] & 0xff);
+                                long epochDay = CsvTokenizer.parseEpochDay(text, 0, length);
+                                bin.writeInt(epochDay == CsvTokenizer.NOT_AN_INT ? Schema.BLANK_DATE : (int) epochDay);
+                                break;
+                            default:
+                                for (int pos = 0; pos < length; pos++) text[pos] = (char) (value[pos] & 0xff);
+                                long parsed = CsvTokenizer.parseInt(text, 0, length);
+                                bin.writeInt(parsed == CsvTokenizer.NOT_AN_INT ? -1 : (int) parsed);
+                        }
                     }
                 }
+                bin.flush();
+                spill.close();
+                spillFile.delete();
             } catch (IOException ex) {
                 System.out.println("I/O ERROR: Couldn't write to the file;\n\t"
                         + "perhaps the file system is full?");
@@ -154,4 +801,501 @@ public class Prog1A {
             }
         }
     }
+
+    /**
+     * Multi-core alternative to Data. The CSV is cut into byte ranges that end on record boundaries, and each range is
+     * parsed on the common fork-join pool in two passes:
+     *  1. find the latest decision date in the chunk, and apply the date-ordering filter as if the chunk were the
+     *     start of the file, inferring field types and widths of the rows it keeps;
+     *  2. encode the kept rows with the merged schema and write them at the chunk's offset in the .bin.
+     * A row is kept exactly when its date is no earlier than every valid date before it, which is what the
+     * sequential filter computes, so the output is identical to Data's. The rows a chunk keeps once the earlier
+     * chunks' latest date is known are the rows pass 1 kept whose date is no earlier than it; when that is all of
+     * them, as it is for a file sorted by date, pass 1's schema stands, otherwise the chunk is inferred again.
+     */
+    public static class ParallelConverter {
+        public static final long DEFAULT_CHUNK_SIZE = 1 << 20; // target chunk size, bytes
+        private static final long NO_DATE = Long.MIN_VALUE; // date of a row whose dateDecision is missing or invalid
+        private static final int FLUSH_SIZE = 1 << 20; // encoded bytes buffered per chunk before writing
+
+        private final String csvFilename;
+        private Schema schema;
+        private int numEntries;
+        private List<Chunk> chunks;
+
+        /**
+         * A byte range of the CSV holding whole records, and what the passes learned about it.
+         */
+        private static class Chunk {
+            final long start, end; // byte range in the CSV, end exclusive
+            long maxDate = NO_DATE; // latest valid date in the chunk
+            long firstKeptDate = NO_DATE; // date of the first row kept when the earlier chunks are ignored
+            long precedingMaxDate = NO_DATE; // latest valid date in all earlier chunks
+            long firstRow; // number of kept rows in all earlier chunks
+            int numKept;
+            Schema schema; // types and widths of the chunk's kept rows
+            File csvPart; // this chunk's share of out.csv
+
+            Chunk(long start, long end) {
+                this.start = start;
+                this.end = end;
+            }
+        }
+
+        public ParallelConverter(String csvFilename) {
+            this(csvFilename, DEFAULT_CHUNK_SIZE);
+        }
+
+        /**
+         * Splits the CSV and runs the first two passes, after which the schema is known.
+         *
+         * @param csvFilename name of the CSV file
+         * @param chunkSize target size of each chunk in bytes
+         */
+        public ParallelConverter(String csvFilename, long chunkSize) {
+            this.csvFilename = csvFilename;
+            try {
+                CsvTokenizer header = new CsvTokenizer(new FileReader(csvFilename));
+                header.next();
+                schema = Schema.fromHeader(header);
+                header.close();
+
+                chunks = split(chunkSize);
+                runAll(chunk -> inferSchema(chunk));
+                long maxDate = NO_DATE;
+                List<Chunk> stale = new ArrayList<>(); // chunks that kept rows an earlier chunk's date filters out
+                for (Chunk chunk : chunks) {
+                    chunk.precedingMaxDate = maxDate;
+                    if (chunk.numKept > 0 && chunk.firstKeptDate < maxDate) stale.add(chunk);
+                    maxDate = Math.max(maxDate, chunk.maxDate);
+                }
+                if (!stale.isEmpty()) runAll(stale, chunk -> inferSchema(chunk));
+
+                numEntries = 0;
+                for (Chunk chunk : chunks) {
+                    chunk.firstRow = numEntries;
+                    numEntries += chunk.numKept;
+                    schema.merge(chunk.schema);
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                System.out.println("I/O ERROR: Couldn't read from the file, or file was corrupt");
+                System.exit(-1);
+            }
+        }
+
+        /**
+         * Writes the header, encodes every chunk in parallel straight into its slot of the file, and assembles
+         * out.csv from the chunks' parts. Field names are not written.
+         * @param output stream of bin file
+         */
+        public void outputToBin(RandomAccessFile output) {
+            try {
+                schema.writeHeader(output, numEntries);
+                final long dataStart = output.getFilePointer();
+                final FileChannel channel = output.getChannel();
+                runAll(chunk -> encode(chunk, channel, dataStart));
+
+                FileChannel csv = new FileOutputStream("out.csv").getChannel();
+                for (Chunk chunk : chunks) {
+                    FileChannel part = new FileInputStream(chunk.csvPart).getChannel();
+                    for (long done = 0; done < part.size(); )
+                        done += part.transferTo(done, part.size() - done, csv);
+                    part.close();
+                    chunk.csvPart.delete();
+                }
+                csv.close();
+            } catch (IOException ex) {
+                System.out.println("I/O ERROR: Couldn't write to the file;\n\t"
+                        + "perhaps the file system is full?");
+                System.exit(-1);
+            }
+        }
+
+        /**
+         * Cuts the data records (everything after the header) into ranges of about chunkSize bytes. A range may only
+         * end just after a line feed that is outside quotes, which depends on the quote parity of everything before
+         * it. The file is read as blocks of chunkSize bytes in parallel; each block records its own quote parity and
+         * the first line feed at which its local parity is even and at which it is odd. Once the parity at the start
+         * of every block is known, each block contributes the first of those line feeds that is outside quotes as a
+         * range boundary. The scan looks only at the ASCII bytes '"' and '\n', which never occur inside a multi-byte
+         * character.
+         */
+        private List<Chunk> split(long chunkSize) throws IOException {
+            final FileChannel file = new FileInputStream(csvFilename).getChannel();
+            final long size = file.size();
+            final int blockSize = (int) Math.min(chunkSize, Integer.MAX_VALUE - 8); // bytes each scan task reads
+            List<Callable<long[]>> tasks = new ArrayList<>();
+            for (long blockStart = 0; blockStart < size; blockStart += blockSize) {
+                final long start = blockStart;
+                tasks.add(() -> scanBlock(file, start, (int) Math.min(blockSize, size - start)));
+            }
+            List<Long> boundaries = new ArrayList<>(); // positions just after each unquoted line feed chosen
+            int parity = 0; // quote parity at the start of the block
+            for (Future<long[]> result : ForkJoinPool.commonPool().invokeAll(tasks)) {
+                long block[];
+                try {
+                    block = result.get();
+                } catch (InterruptedException | ExecutionException ex) {
+                    throw new IOException(ex);
+                }
+                long boundary = block[1 + parity];
+                if (boundary != -1 && (boundaries.isEmpty() || boundary > boundaries.get(boundaries.size() - 1)))
+                    boundaries.add(boundary);
+                parity ^= (int) block[0];
+            }
+            file.close();
+
+            List<Chunk> result = new ArrayList<>();
+            for (int i = 1; i < boundaries.size(); i++) result.add(new Chunk(boundaries.get(i - 1), boundaries.get(i)));
+            // the first boundary ends the header; anything after the last one is a final record without a line feed
+            if (!boundaries.isEmpty() && boundaries.get(boundaries.size() - 1) < size)
+                result.add(new Chunk(boundaries.get(boundaries.size() - 1), size));
+            return result;
+        }
+
+        /**
+         * Reads length bytes at start with positional reads and scans them for quotes and line feeds.
+         * @return the block's quote parity, then the position just after the first line feed preceded by an even and
+         *         by an odd number of quotes within the block, or -1 where there is none
+         */
+        private static long[] scanBlock(FileChannel file, long start, int length) throws IOException {
+            byte bytes[] = new byte[length];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining())
+                if (file.read(buffer, start + buffer.position()) == -1) throw new EOFException();
+            long result[] = {0, -1, -1};
+            int parity = 0;
+            for (int pos = 0; pos < length; pos++) {
+                if (bytes[pos] == '"') parity ^= 1;
+                else if (bytes[pos] == '\n' && result[1 + parity] == -1) result[1 + parity] = start + pos + 1;
+            }
+            result[0] = parity;
+            return result;
+        }
+
+        /**
+         * Applies the date-ordering filter to the chunk, seeded with precedingMaxDate, and infers field types and
+         * widths of the rows it keeps. Also records the chunk's latest date and the date of its first kept row.
+         */
+        private void inferSchema(Chunk chunk) throws IOException {
+            chunk.schema = new Schema(new String[schema.getNumFields()]);
+            chunk.numKept = 0;
+            chunk.firstKeptDate = NO_DATE;
+            long previous = chunk.precedingMaxDate;
+            CsvTokenizer input = open(chunk);
+            while (input.next()) {
+                long date = parseDate(input);
+                chunk.maxDate = Math.max(chunk.maxDate, date);
+                if (!Data.keepRow(input, previous)) continue;
+                previous = date;
+                if (chunk.numKept == 0) chunk.firstKeptDate = date;
+                chunk.schema.observe(input);
+                chunk.numKept++;
+            }
+            input.close();
+        }
+
+        private void encode(Chunk chunk, FileChannel channel, long dataStart) throws IOException {
+            int entrySize = schema.getEntrySize(); // size of each row, bytes
+            long position = dataStart + chunk.firstRow * entrySize; // where the chunk's next buffered row goes
+
+            chunk.csvPart = File.createTempFile("prog1a", ".csv");
+            chunk.csvPart.deleteOnExit();
+            PrintWriter csv = new PrintWriter(new BufferedWriter(new FileWriter(chunk.csvPart)));
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(FLUSH_SIZE + entrySize);
+            DataOutputStream bin = new DataOutputStream(buffer);
+
+            long previous = chunk.precedingMaxDate;
+            CsvTokenizer input = open(chunk);
+            while (input.next()) {
+                if (!Data.keepRow(input, previous)) continue;
+                previous = parseDate(input);
+                input.writeRecord(csv);
+                csv.write("\n");
+                for (int i = 0; i < schema.getNumFields(); i++) schema.writeField(input, i, bin);
+                if (buffer.size() >= FLUSH_SIZE) {
+                    position += write(channel, buffer, position);
+                }
+            }
+            write(channel, buffer, position);
+            input.close();
+            csv.close();
+        }
+
+        /**
+         * Writes the buffered bytes at the given file position and empties the buffer.
+         * @return number of bytes written
+         */
+        private static int write(FileChannel channel, ByteArrayOutputStream buffer, long position) throws IOException {
+            ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+            while (bytes.hasRemaining()) channel.write(bytes, position + bytes.position());
+            buffer.reset();
+            return bytes.limit();
+        }
+
+        /**
+         * @return the row's dateDecision as an epoch day, or NO_DATE if it is missing or not a date
+         */
+        private static long parseDate(CsvTokenizer input) {
+            if (!input.isDateField(Data.DATEDECISION_INDEX)) return NO_DATE;
+            return input.getEpochDayField(Data.DATEDECISION_INDEX);
+        }
+
+        private CsvTokenizer open(Chunk chunk) throws IOException {
+            final FileChannel file = new FileInputStream(csvFilename).getChannel();
+            InputStream range = new InputStream() { // reads only the chunk's bytes
+                private long position = chunk.start;
+
+                @Override
+                public int read() throws IOException {
+                    byte one[] = new byte[1];
+                    return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte b[], int off, int len) throws IOException {
+                    if (position >= chunk.end) return -1;
+                    int read = file.read(ByteBuffer.wrap(b, off, (int) Math.min(len, chunk.end - position)), position);
+                    if (read > 0) position += read;
+                    return read;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    file.close();
+                }
+            };
+            return new CsvTokenizer(new InputStreamReader(range, Charset.defaultCharset()));
+        }
+
+        private interface ChunkTask {
+            void run(Chunk chunk) throws IOException;
+        }
+
+        /**
+         * Runs the task on every chunk in the common fork-join pool and waits for all of them.
+         */
+        private void runAll(ChunkTask task) throws IOException {
+            runAll(chunks, task);
+        }
+
+        /**
+         * Runs the task on the given chunks in the common fork-join pool and waits for all of them.
+         */
+        private static void runAll(List<Chunk> chunks, ChunkTask task) throws IOException {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (Chunk chunk : chunks) tasks.add(() -> {
+                task.run(chunk);
+                return null;
+            });
+            for (Future<Void> result : ForkJoinPool.commonPool().invokeAll(tasks)) {
+                try {
+                    result.get();
+                } catch (InterruptedException | ExecutionException ex) {
+                    throw new IOException(ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Quote-aware CSV tokenizer that scans each record once. Commas inside double quotes do not split fields, a doubled
+     * quote inside a quoted field is kept as-is, and line breaks inside quotes are part of the record. Fields are
+     * exposed as slices of a reusable record buffer, so no String or String[] is allocated unless getField is called.
+     * Like the regex splitter it replaces, field values keep their surrounding quotes.
+     */
+    public static class CsvTokenizer {
+        public static final long NOT_AN_INT = Long.MIN_VALUE; // returned by parseInt for values Integer.parseInt rejects
+
+        private final Reader input;
+        private final char block[] = new char[1 << 16]; // chars read from input but not yet scanned
+        private int blockPos, blockLength;
+        private boolean skipLineFeed; // true after a \r, so that a following \n does not end an empty record
+
+        private char record[] = new char[1024]; // text of the current record, line terminator excluded
+        private int recordLength;
+        private int fieldStart[] = new int[64], fieldEnd[] = new int[64]; // field slices within record
+        private int numFields;
+
+        public CsvTokenizer(Reader input) {
+            this.input = input;
+        }
+
+        /**
+         * Advances to the next record.
+         * @return false once the input is exhausted
+         */
+        public boolean next() throws IOException {
+            recordLength = 0;
+            numFields = 0;
+            int begin = 0; // start of the field being scanned
+            boolean inQuotes = false, started = false;
+            while (true) {
+                if (blockPos == blockLength) {
+                    blockLength = Math.max(input.read(block, 0, block.length), 0);
+                    blockPos = 0;
+                    if (blockLength == 0) {
+                        if (!started) return false;
+                        break;
+                    }
+                }
+                char c = block[blockPos++];
+                if (skipLineFeed) {
+                    skipLineFeed = false;
+                    if (c == '\n') continue;
+                }
+                started = true;
+                if (!inQuotes && (c == '\n' || c == '\r')) {
+                    skipLineFeed = c == '\r';
+                    break;
+                }
+                if (c == '"') inQuotes = !inQuotes;
+                else if (c == ',' && !inQuotes) {
+                    endField(begin);
+                    begin = recordLength + 1;
+                }
+                append(c);
+            }
+            endField(begin);
+            return true;
+        }
+
+        public int getNumFields() {
+            return numFields;
+        }
+
+        /**
+         * @return length of field i in chars, 0 if the record has no field i
+         */
+        public int getFieldLength(int i) {
+            return i < numFields ? fieldEnd[i] - fieldStart[i] : 0;
+        }
+
+        /**
+         * @return field i as a new String, empty if the record has no field i
+         */
+        public String getField(int i) {
+            return i < numFields ? new String(record, fieldStart[i], fieldEnd[i] - fieldStart[i]) : "";
+        }
+
+        /**
+         * @return true if Integer.parseInt would accept field i
+         */
+        public boolean isIntField(int i) {
+            return parseField(i) != NOT_AN_INT;
+        }
+
+        /**
+         * @return true if field i looks like an M/d/yyyy date
+         */
+        public boolean isDateField(int i) {
+            return i < numFields && parseEpochDay(record, fieldStart[i], fieldEnd[i]) != NOT_AN_INT;
+        }
+
+        /**
+         * @return field i as an epoch day, or Schema.BLANK_DATE if it is not a date
+         */
+        public int getEpochDayField(int i) {
+            long epochDay = i < numFields ? parseEpochDay(record, fieldStart[i], fieldEnd[i]) : NOT_AN_INT;
+            return epochDay == NOT_AN_INT ? Schema.BLANK_DATE : (int) epochDay;
+        }
+
+        /**
+         * @return field i parsed as an int, or defaultValue if it is not one
+         */
+        public int getIntField(int i, int defaultValue) {
+            long value = parseField(i);
+            return value == NOT_AN_INT ? defaultValue : (int) value;
+        }
+
+        /**
+         * Copies field i into dest at offset, one byte per char, dropping the high byte like DataOutput.writeBytes.
+         * @return number of bytes copied
+         */
+        public int getFieldBytes(int i, byte dest[], int offset) {
+            int length = getFieldLength(i);
+            for (int pos = 0; pos < length; pos++) dest[offset + pos] = (byte) record[fieldStart[i] + pos];
+            return length;
+        }
+
+        /**
+         * Writes field i one byte per char, dropping the high byte like DataOutput.writeBytes.
+         */
+        public void writeFieldBytes(int i, DataOutput output) throws IOException {
+            if (i >= numFields) return;
+            for (int pos = fieldStart[i]; pos < fieldEnd[i]; pos++) output.write(record[pos]);
+        }
+
+        /**
+         * Writes the raw text of the current record, without a line terminator.
+         */
+        public void writeRecord(Writer output) throws IOException {
+            output.write(record, 0, recordLength);
+        }
+
+        public void close() throws IOException {
+            input.close();
+        }
+
+        /**
+         * Parses chars [start, end) with the same rules as Integer.parseInt, restricted to ASCII digits.
+         * @return the parsed value, or NOT_AN_INT
+         */
+        public static long parseInt(char chars[], int start, int end) {
+            if (start == end) return NOT_AN_INT;
+            boolean negative = chars[start] == '-';
+            if (negative || chars[start] == '+') {
+                if (end - start == 1) return NOT_AN_INT;
+                start++;
+            }
+            long result = 0;
+            for (int pos = start; pos < end; pos++) {
+                if (chars[pos] < '0' || chars[pos] > '9') return NOT_AN_INT;
+                result = result * 10 + (chars[pos] - '0');
+                if (result > (long) Integer.MAX_VALUE + 1) return NOT_AN_INT;
+            }
+            if (negative) result = -result;
+            return result > Integer.MAX_VALUE ? NOT_AN_INT : result;
+        }
+
+        /**
+         * Parses chars [start, end) as an M/d/yyyy date. Out-of-range months and days roll over the way the lenient
+         * Data.DATE_FORMAT does, so dates decode to the days Data.DATE_FORMAT reads them as.
+         * @return the epoch day, or NOT_AN_INT if the text is not 1-2 digits, '/', 1-2 digits, '/', 4 digits
+         */
+        public static long parseEpochDay(char chars[], int start, int end) {
+            int parts[] = new int[3], digits = 0, part = 0;
+            for (int pos = start; pos < end; pos++) {
+                char c = chars[pos];
+                if (c == '/' && part < 2 && digits > 0 && digits <= 2) {
+                    part++;
+                    digits = 0;
+                } else if (c >= '0' && c <= '9' && digits < 4) {
+                    parts[part] = parts[part] * 10 + (c - '0');
+                    digits++;
+                } else return NOT_AN_INT;
+            }
+            if (part != 2 || digits != 4) return NOT_AN_INT;
+            return LocalDate.of(parts[2], 1, 1).plusMonths(parts[0] - 1).plusDays(parts[1] - 1).toEpochDay();
+        }
+
+        private long parseField(int i) {
+            return i < numFields ? parseInt(record, fieldStart[i], fieldEnd[i]) : NOT_AN_INT;
+        }
+
+        private void append(char c) {
+            if (recordLength == record.length) record = Arrays.copyOf(record, record.length * 2);
+            record[recordLength++] = c;
+        }
+
+        private void endField(int begin) {
+            if (numFields == fieldStart.length) {
+                fieldStart = Arrays.copyOf(fieldStart, numFields * 2);
+                fieldEnd = Arrays.copyOf(fieldEnd, numFields * 2);
+            }
+            fieldStart[numFields] = begin;
+            fieldEnd[numFields++] = recordLength;
+        }
+    }
 }
@@ -1,11 +1,45 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.DateFormat;
 import java.text.ParseException;
+import java.text.ParsePosition;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
 
 /**
  * Assignment: Program 1B
@@ -14,19 +48,31 @@ import java.util.Scanner;
  * Instructor: Lester McCann
  * TA's: Prathyusha Butti, Zheng Tang
  *
- * Usage java Prog1B [file path]
+ * Usage java Prog1B [--raf] [--cache-bytes N] [--stats] [--concurrency-bench] [file path]
  *
  * This program reads a .bin file written using Prog1A, the path of which must be provided as an argument.
  * The .bin file represents a database of court case information. This program prints the first 3,
- * middle 3 (4 if even), and last 3 elements in the DB, then takes in date inputs MM/dd/yyyy from the user,
- * printing any hits in the DB. The date query is implemented using ternary search. The query functionality assumes
- * the database arrives already sorted.
+ * middle 3 (4 if even), and last 3 elements in the DB, then takes in date inputs MM/dd/yyyy (or date ranges
+ * MM/dd/yyyy-MM/dd/yyyy) from the user, printing any hits in the DB. The date query binary searches for the first and
+ * last rows with the date and reads the rows between them sequentially. The query functionality assumes the database
+ * arrives already sorted. When the .fence sidecar Prog1A writes next to the .bin is present and up to date, the
+ * searches run over its in-memory fences and read a single page of rows.
+ *
+ * By default the .bin file is memory-mapped and rows are decoded straight out of the mapping. Passing --raf reads
+ * through the file instead, with one positional read call per row. Either way BinaryFileDB can be queried from many
+ * threads at once; --concurrency-bench measures get/query throughput as threads are added. --cache-bytes N puts an
+ * LRU cache of about N bytes of decoded rows in front of the file and prints its hit/miss/eviction counts on exit. Both the row-major
+ * layout and the column-major layout written by Prog1A --columnar are accepted. Without a cache, entries are printed
+ * through a reused RowView straight from the file's bytes, so printing a query's rows decodes nothing into objects.
+ * --stats records read calls, bytes read, rows decoded and get/query latency percentiles, publishes them over JMX while
+ * the program runs, and prints them on exit.
  *
  * System requirements: Java 8
  */
 public class Prog1B {
     // indices for desired fields to be printed for the assignment
     public static int CASEID_INDEX = 0, DATEDECISION_INDEX = 4, CASENAME_INDEX = 14;
+    public static int[] PRINTED_FIELDS = {CASEID_INDEX, DATEDECISION_INDEX, CASENAME_INDEX}; // fields printEntry uses
 
     /**
      * @name printEntry
@@ -37,24 +83,57 @@ public class Prog1B {
         System.out.println(entry[CASEID_INDEX] + " " + entry[DATEDECISION_INDEX] + " " + entry[CASENAME_INDEX]);
     }
 
-    public static void main(String args[]) throws IOException {
-        if (args == null || args.length < 1) throw new RuntimeException("Usage java Prog1B [file path]");
-        String binFilename = args[0]; // filename for the .bin file
+    /**
+     * @name printEntry
+     * Prints the same information for an entry viewed in place, reusing one line buffer.
+     * @param entry
+     */
+    private static void printEntry(RowView entry) {
+        line.setLength(0);
+        entry.appendTo(line, CASEID_INDEX);
+        entry.appendTo(line.append(' '), DATEDECISION_INDEX);
+        entry.appendTo(line.append(' '), CASENAME_INDEX);
+        System.out.println(line);
+    }
+    private static final StringBuilder line = new StringBuilder(); // reused by printEntry
+
+    public static void main(String args[]) throws IOException, InterruptedException {
+        String binFilename = null; // filename for the .bin file
+        boolean memoryMapped = true; // whether rows are read through a memory mapping or the RAF
+        boolean concurrencyBench = false; // only measure multi-threaded throughput
+        long cacheBytes = 0; // capacity of the row cache, 0 for no cache
+        boolean stats = false; // record counters and latencies, and print them on exit
+        for (int i = 0; args != null && i < args.length; i++) {
+            if (args[i].equals("--raf")) memoryMapped = false;
+            else if (args[i].equals("--stats")) stats = true;
+            else if (args[i].equals("--concurrency-bench")) concurrencyBench = true;
+            else if (args[i].equals("--cache-bytes") && i + 1 < args.length) cacheBytes = Long.parseLong(args[++i]);
+            else binFilename = args[i];
+        }
+        if (binFilename == null)
+            throw new RuntimeException("Usage java Prog1B [--raf] [--cache-bytes N] [--stats] [--concurrency-bench] [file path]");
+        if (stats) Stats.enable();
         RandomAccessFile file = new RandomAccessFile(new File(binFilename), "r"); // file providing access to the DB
-        BinaryFileDB db = new BinaryFileDB(file); // DB object constructed using the file
+        BinaryFileDB db = new BinaryFileDB(file, memoryMapped); // DB object constructed using the file
+        db.loadFences(binFilename);
+        if (cacheBytes > 0) db.setCache(new RowCache(cacheBytes));
+        if (concurrencyBench) {
+            benchmarkConcurrency(db);
+            file.close();
+            if (stats) System.out.print(Stats.report());
+            return;
+        }
 
         /* Output all data for part 1 */
-        Object[][] first3 = {db.get(0), db.get(1), db.get(2)}; // array containing first 3 elements in db
-        for (int i = 0; i < 3; i++) printEntry(first3[i]);
+        RowView view = db.newView(); // reused for every printed entry
+        for (int i = 0; i < 3; i++) printEntry(db.getView(i, view)); // first 3 elements in db
 
-        if (db.getNumEntries() % 2 == 0) printEntry(db.get(db.getNumEntries()/2 - 2));
-        // array containing middle 3 elements of db
-        Object[][] middle3 = {db.get(db.getNumEntries()/2 - 1), db.get(db.getNumEntries()/2), db.get(db.getNumEntries()/2 + 1)};
-        for (int i = 0; i < 3; i++) printEntry(middle3[i]);
+        if (db.getNumEntries() % 2 == 0) printEntry(db.getView(db.getNumEntries()/2 - 2, view));
+        // middle 3 elements of db
+        for (int i = -1; i <= 1; i++) printEntry(db.getView(db.getNumEntries()/2 + i, view));
 
-        // array containing last 3 elements of db
-        Object[][] last3 = {db.get(db.getNumEntries() - 3), db.get(db.getNumEntries() - 2), db.get(db.getNumEntries() - 1)};
-        for (int i = 0; i < 3; i++) printEntry(last3[i]);
+        // last 3 elements of db
+        for (int i = 3; i >= 1; i--) printEntry(db.getView(db.getNumEntries() - i, view));
 
         System.out.println(db.getNumEntries());
 
@@ -62,74 +141,185 @@ public class Prog1B {
         Scanner scanner = new Scanner(System.in);
         while (scanner.hasNext()) {
             try {
-                Date queryDate = Prog1A.Data.DATE_FORMAT.parse(scanner.next()); // date to be queried
-                List<Object[]> entries = db.query(queryDate, 0, db.getNumEntries()); // results from DB query
-                entries.forEach(entry -> printEntry(entry));
+                String dates[] = scanner.next().split("-", -1); // one date, or the first and last date of a range
+                if (dates.length > 2) throw new ParseException(dates[2], 0);
+                int from = parseDay(dates[0]); // first date queried
+                int to = dates.length == 2 ? parseDay(dates[1]) : from; // last date queried
+                if (db.getCache() == null) db.query(from, to, Prog1B::printEntry);
+                else db.queryRange(from, to, PRINTED_FIELDS).forEach(Prog1B::printEntry); // through the row cache
             } catch (ParseException ex) {
-                System.out.println("Please enter a date in the form MM/dd/yyyy");
+                System.out.println("Please enter a date in the form MM/dd/yyyy, or a range MM/dd/yyyy-MM/dd/yyyy");
             }
         }
 
         scanner.close();
         file.close();
+        if (db.getCache() != null) System.out.println(db.getCache());
+        if (stats) System.out.print(Stats.report());
+    }
+
+    /**
+     * @name parseDay
+     * @param text a whole MM/dd/yyyy date, with nothing before or after it
+     * @return the date as an epoch day
+     */
+    private static int parseDay(String text) throws ParseException {
+        ParsePosition position = new ParsePosition(0); // how much of text the date used
+        Date date = Prog1A.Data.DATE_FORMAT.parse(text, position);
+        if (date == null || position.getIndex() != text.length()) throw new ParseException(text, position.getIndex());
+        return Prog1A.Schema.toEpochDay(date);
+    }
+
+    /**
+     * Measures throughput of a mixed workload with 1, 2, 4, ... threads up to the number of cores. Every thread
+     * repeatedly fetches a random row and, for one row in 16, also queries that row's decision date.
+     * @param db database shared by all threads
+     */
+    private static void benchmarkConcurrency(BinaryFileDB db) throws InterruptedException {
+        final long runNanos = 2_000_000_000L; // how long each thread count is measured
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; ; threads = Math.min(threads * 2, maxThreads)) {
+            long operations[] = new long[threads]; // operations finished by each thread
+            Thread workers[] = new Thread[threads];
+            long deadline = System.nanoTime() + runNanos;
+            for (int t = 0; t < threads; t++) {
+                final int id = t;
+                workers[t] = new Thread(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    while (System.nanoTime() < deadline) {
+                        int index = random.nextInt(db.getNumEntries());
+                        db.get(index, PRINTED_FIELDS);
+                        if ((operations[id] & 15) == 0)
+                            db.query(db.getDecisionDay(index), 0, db.getNumEntries(), PRINTED_FIELDS);
+                        operations[id]++;
+                    }
+                });
+                workers[t].start();
+            }
+            long total = 0;
+            for (int t = 0; t < threads; t++) {
+                workers[t].join();
+                total += operations[t];
+            }
+            System.out.printf("%2d threads: %.0f ops/sec%n", threads, total / (runNanos / 1e9));
+            if (threads == maxThreads) break;
+        }
     }
 
     /**
      * Class representing the binary file as a DB, handles queries by index and by date. Depends on file produced from
      * Prog1A.java.
      *
+     * Reads never move a shared file pointer or buffer position: the mapping is read through per-call views and the
+     * file through positional FileChannel reads into per-thread buffers, so get and query may be called from any
+     * number of threads without locking.
+     *
      * @name BinaryFileDB
      * @author Bohan Li
      */
     public static class BinaryFileDB {
         private RandomAccessFile file;          // file for accessing DB data
+        private FileChannel channel;            // channel of the file, read with positional reads only
+        private MappedByteBuffer mapped;        // read-only mapping of the file, null when reading through the channel
+        // per-thread state, so that concurrent readers never share a buffer or a SimpleDateFormat
+        private final ThreadLocal<ByteBuffer> readBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocate(1024));
+        private final ThreadLocal<DateFormat> dateFormat = ThreadLocal.withInitial(() -> (DateFormat) Prog1A.Data.DATE_FORMAT.clone());
         private long dataStart;                 // position in file for start point of DB data
         private int numFields;                  // number of fields in the DB
         private boolean fieldIsString[];        // boolean array for whether a field contains string data or not
+        private boolean fieldIsDate[];          // boolean array for whether a field holds dates as int epoch days
         private int maxFieldSize[];             // size for each field, in bytes
         private int numEntries;                 // number of rows (entries) in the DB
         private int entrySize;                  // size of each row (entry), in bytes
+        private int fieldOffset[];              // offset of each field within a row, in bytes
+        private long columnStart[];             // position in file of each field's column, null for row-major files
+        private RowCache cache;                 // decoded rows, null when caching is off
+        private FenceIndex fences;              // first date of every page of rows, null when no fresh sidecar exists
+        private static final int MAX_RUN_GAP = 8;          // most rows getAll reads past to keep a run going
+        private static final int MAX_RUN_BYTES = 1 << 20;  // most bytes getAll reads with one I/O
+        private int allFields[];                // projection of every field, used for full-row gets
+        // metrics, recorded only while Stats is enabled
+        private static final Stats.Counter READS = Stats.counter("db.reads");             // read() calls
+        private static final Stats.Counter BYTES_READ = Stats.counter("db.bytesRead");    // bytes those calls covered
+        private static final Stats.Counter ROWS_DECODED = Stats.counter("db.rowsDecoded");
+        private static final Stats.Counter ROW_VIEWS = Stats.counter("db.rowViews");        // rows passed as views
+        private static final Stats.Histogram GET_LATENCY = Stats.histogram("db.get");
+        private static final Stats.Histogram QUERY_LATENCY = Stats.histogram("db.query");
+        private static final Stats.Histogram RANGE_QUERY_LATENCY = Stats.histogram("db.queryRange");
 
         public BinaryFileDB(RandomAccessFile file) {
+            this(file, false);
+        }
+
+        /**
+         * Opens the DB, optionally memory-mapping the whole file so that get() decodes rows from the page cache
+         * without any read call. Files too large for a single mapping fall back to positional reads.
+         * @param file file containing the DB, positioned at its header
+         * @param memoryMapped true to read rows through a memory mapping, false to read through the file's channel
+         */
+        public BinaryFileDB(RandomAccessFile file, boolean memoryMapped) {
             try {
                 this.file = file;
                 numFields = file.readInt();
+                boolean columnar = numFields == Prog1A.Data.COLUMNAR_MAGIC; // column-major file from Prog1A --columnar
+                if (columnar) numFields = file.readInt();
                 numEntries = file.readInt();
 
                 fieldIsString = new boolean[numFields];
+                fieldIsDate = new boolean[numFields];
                 maxFieldSize = new int[numFields];
+                fieldOffset = new int[numFields];
+                if (columnar) columnStart = new long[numFields];
                 this.entrySize = 0;
                 for (int i = 0; i < numFields; i++) {
-                    fieldIsString[i] = file.readBoolean();
+                    // type tag; files from before typed dates only use the int and string tags
+                    int type = file.readByte();
+                    fieldIsString[i] = type == Prog1A.Schema.TYPE_STRING;
+                    fieldIsDate[i] = type == Prog1A.Schema.TYPE_DATE;
                     maxFieldSize[i] = file.readInt();
+                    if (columnar) columnStart[i] = file.readLong();
+                    fieldOffset[i] = entrySize;
                     // max field sizes are not set for integers, so set them to 4 bytes
                     entrySize += fieldIsString[i] ? maxFieldSize[i] : 4;
                 }
 
                 dataStart = file.getFilePointer();
+                channel = file.getChannel();
+                allFields = new int[numFields];
+                for (int i = 0; i < numFields; i++) allFields[i] = i;
+
+                if (memoryMapped) {
+                    if (file.length() <= Integer.MAX_VALUE)
+                        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+                    else System.out.println("Binary file is too large to map, reading through the RAF instead");
+                }
             } catch (IOException ex) {
                 System.out.println("Binary file could not be read or was corrupt");
             }
         }
 
         /**
-         * Queries database by index of the entry. Moves RAF file pointer to the location after the read.
+         * Queries database by index of the entry. Safe to call from several threads at once.
          * @name get
          * @param index
          * @return the entry in the database
          */
         public Object[] get(int index) {
             if (index < 0 || index >= numEntries) throw new IndexOutOfBoundsException();
+            if (columnStart != null) return get(index, allFields);
+            long start = Stats.start(); // start time of the get, when stats are on
+            Object[] cached = cache == null ? null : cache.get(index, allFields);
+            if (cached != null) {
+                GET_LATENCY.recordSince(start);
+                return cached;
+            }
             try {
-                file.seek(dataStart + index*entrySize); // set RAF pointer to beginning of read position
+                ByteBuffer row = read(dataStart + (long) index * entrySize, entrySize); // bytes of the whole row
                 Object[] retval = new Object[numFields]; // return value
-                for (int i = 0; i < numFields; i++) {
-                    if (fieldIsString[i]) {
-                        byte byteSeq[] = new byte[maxFieldSize[i]]; // read string as sequence of bytes into array
-                        file.readFully(byteSeq);
-                        retval[i] = new String(byteSeq);
-                    } else retval[i] = file.readInt();
-                }
+                for (int i = 0; i < numFields; i++) retval[i] = decodeField(row, i);
+                ROWS_DECODED.increment();
+                if (cache != null) cache.put(index, allFields, retval, rowBytes(allFields));
+                GET_LATENCY.recordSince(start);
                 return retval;
             } catch (IOException ex) {
                 System.out.println("Could not properly read from the file.");
@@ -138,6 +328,256 @@ public class Prog1B {
             return null;
         }
 
+        /**
+         * Queries database by index of the entry, decoding only the requested fields. On a column-major file only
+         * those fields' bytes are read. Safe to call from several threads at once.
+         * @name get
+         * @param index
+         * @param fields indices of the fields to decode
+         * @return the entry in the database, with null for every field not requested (a cached full row may be
+         * returned instead). Rows may be shared through the cache, so callers must not modify them.
+         */
+        public Object[] get(int index, int fields[]) {
+            if (index < 0 || index >= numEntries) throw new IndexOutOfBoundsException();
+            long start = Stats.start(); // start time of the get, when stats are on
+            Object[] cached = cache == null ? null : cache.get(index, fields);
+            if (cached != null) {
+                GET_LATENCY.recordSince(start);
+                return cached;
+            }
+            Object[] retval = new Object[numFields]; // return value
+            try {
+                for (int field : fields) retval[field] = decodeField(read(fieldPosition(index, field), storedSize(field)), field);
+                ROWS_DECODED.increment();
+                if (cache != null) cache.put(index, fields, retval, rowBytes(fields));
+            } catch (IOException ex) {
+                System.out.println("Could not properly read from the file.");
+                System.exit(1);
+            }
+            GET_LATENCY.recordSince(start);
+            return retval;
+        }
+
+        /**
+         * Fetches many entries at once. The indices are sorted and grouped into runs of nearby rows; each run is read
+         * with a single I/O (one per projected field on a column-major file) and its rows are decoded from that buffer.
+         * Rows found in the cache are not read again.
+         * @name getAll
+         * @param indices entries to fetch, in any order and possibly repeated
+         * @param fields indices of the fields to decode
+         * @return the entries, in the order of indices
+         */
+        public Object[][] getAll(int indices[], int fields[]) {
+            Object[][] retval = new Object[indices.length][]; // return value
+            // sort (index, position) pairs packed into longs, so no boxing is needed
+            long order[] = new long[indices.length];
+            int numToRead = 0;
+            for (int i = 0; i < indices.length; i++) {
+                if (indices[i] < 0 || indices[i] >= numEntries) throw new IndexOutOfBoundsException();
+                if (cache != null && (retval[i] = cache.get(indices[i], fields)) != null) continue;
+                order[numToRead++] = (long) indices[i] << 32 | i;
+            }
+            Arrays.sort(order, 0, numToRead);
+
+            try {
+                for (int runStart = 0, runEnd; runStart < numToRead; runStart = runEnd) {
+                    // extend the run while the next row is close and the run stays small enough to read at once
+                    int first = (int) (order[runStart] >>> 32), last = first;
+                    for (runEnd = runStart + 1; runEnd < numToRead; runEnd++) {
+                        int next = (int) (order[runEnd] >>> 32);
+                        if (next - last > MAX_RUN_GAP || (long) (next - first + 1) * entrySize > MAX_RUN_BYTES) break;
+                        last = next;
+                    }
+                    decodeRun(order, runStart, runEnd, first, last, fields, retval);
+                }
+            } catch (IOException ex) {
+                System.out.println("Could not properly read from the file.");
+                System.exit(1);
+            }
+            return retval;
+        }
+
+        /**
+         * Fetches every field of many entries at once.
+         * @see #getAll(int[], int[])
+         */
+        public Object[][] getAll(int indices[]) {
+            return getAll(indices, allFields);
+        }
+
+        /**
+         * Reads rows first..last and decodes those listed in order[runStart, runEnd) into retval.
+         */
+        private void decodeRun(long order[], int runStart, int runEnd, int first, int last, int fields[],
+                               Object[][] retval) throws IOException {
+            int numRows = last - first + 1;
+            // a row-major run is read once for all fields; a column-major run is read once per field below
+            ByteBuffer rows = columnStart == null ? read(dataStart + (long) first * entrySize, numRows * entrySize) : null;
+            int rowsBase = rows == null ? 0 : rows.position(); // position of the first row in rows
+
+            for (int k = runStart; k < runEnd; k++) {
+                boolean repeat = k > runStart && order[k] >>> 32 == order[k - 1] >>> 32; // same index as the previous pair
+                retval[(int) order[k]] = repeat ? retval[(int) order[k - 1]] : new Object[numFields];
+            }
+            for (int field : fields) {
+                ByteBuffer run = rows; // bytes of the run
+                int base = rowsBase, stride = entrySize, offset = fieldOffset[field]; // first row, row size, field offset
+                if (columnStart != null) {
+                    stride = storedSize(field);
+                    offset = 0;
+                    run = read(fieldPosition(first, field), numRows * stride);
+                    base = run.position();
+                }
+                for (int k = runStart; k < runEnd; k++) {
+                    if (k > runStart && order[k] >>> 32 == order[k - 1] >>> 32) continue;
+                    run.position(base + ((int) (order[k] >>> 32) - first) * stride + offset);
+                    retval[(int) order[k]][field] = decodeField(run, field);
+                }
+            }
+            int decoded = 0; // distinct rows of the run that were asked for
+            for (int k = runStart; k < runEnd; k++) if (k == runStart || order[k] >>> 32 != order[k - 1] >>> 32) decoded++;
+            ROWS_DECODED.add(decoded);
+            if (cache != null) {
+                for (int k = runStart; k < runEnd; k++)
+                    cache.put((int) (order[k] >>> 32), fields, retval[(int) order[k]], rowBytes(fields));
+            }
+        }
+
+        /**
+         * Reads length bytes at the given file position without touching any shared position: a view of the mapping,
+         * or a positional channel read into a buffer owned by the calling thread. The buffer stays valid until the
+         * thread's next read.
+         * @return buffer positioned at the first byte read, with length bytes remaining
+         */
+        private ByteBuffer read(long position, int length) throws IOException {
+            if (mapped != null) {
+                READS.increment();
+                BYTES_READ.add(length);
+                ByteBuffer view = mapped.duplicate();
+                view.limit((int) position + length).position((int) position);
+                return view;
+            }
+            ByteBuffer buffer = readBuffer.get();
+            if (buffer.capacity() < length) {
+                buffer = ByteBuffer.allocate(Math.max(length, 2 * buffer.capacity()));
+                readBuffer.set(buffer);
+            }
+            readFully(buffer, position, length);
+            return buffer;
+        }
+
+        /**
+         * Fills the start of a buffer with length bytes from the given file position with positional channel reads.
+         * @return the buffer, positioned at 0 with length bytes remaining
+         */
+        private ByteBuffer readFully(ByteBuffer buffer, long position, int length) throws IOException {
+            READS.increment();
+            BYTES_READ.add(length);
+            buffer.clear().limit(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException();
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        /**
+         * Decodes the next field out of a buffer returned by read().
+         */
+        private Object decodeField(ByteBuffer buffer, int field) {
+            if (!fieldIsString[field]) return decodeInt(buffer.getInt(), field);
+            byte byteSeq[] = new byte[maxFieldSize[field]]; // copy string bytes out of the buffer
+            buffer.get(byteSeq);
+            return new String(byteSeq);
+        }
+
+        /**
+         * @return position in the file of the given field of an entry
+         */
+        private long fieldPosition(int index, int field) {
+            if (columnStart != null) return columnStart[field] + (long) index * storedSize(field);
+            return dataStart + (long) index * entrySize + fieldOffset[field];
+        }
+
+        /**
+         * @return size of a field's value in the file, in bytes
+         */
+        private int storedSize(int field) {
+            return fieldIsString[field] ? maxFieldSize[field] : 4;
+        }
+
+        /**
+         * Turns a stored int into the value get() reports: dates are formatted back to M/d/yyyy text padded to the
+         * field's width, so typed and legacy files print the same.
+         */
+        private Object decodeInt(int value, int field) {
+            if (!fieldIsDate[field]) return value;
+            StringBuilder date = new StringBuilder(Prog1A.Schema.formatEpochDay(value));
+            while (date.length() < maxFieldSize[field]) date.append(' ');
+            return date.toString();
+        }
+
+        /**
+         * Reads the dateDecision of an entry as an epoch day. Typed files need no parsing; files that store the date
+         * as text fall back to parsing it.
+         */
+        public int getDecisionDay(int index) {
+            try {
+                ByteBuffer buffer = read(fieldPosition(index, DATEDECISION_INDEX), storedSize(DATEDECISION_INDEX));
+                if (fieldIsDate[DATEDECISION_INDEX]) return buffer.getInt();
+                String text = (String) decodeField(buffer, DATEDECISION_INDEX);
+                return Prog1A.Schema.toEpochDay(dateFormat.get().parse(text));
+            } catch (IOException ex) {
+                System.out.println("Could not properly read from the file.");
+                System.exit(1);
+            } catch (ParseException ex) {
+                System.out.println("Corrupt date was found in the bin data. Exiting...");
+                System.exit(1);
+            }
+            return 0;
+        }
+
+        /**
+         * Estimated heap footprint of a row decoded with the given fields: the Object[] plus a boxed Integer per int
+         * field and a String with its byte[] per string or date field.
+         */
+        private long rowBytes(int fields[]) {
+            long bytes = 16 + 4L * numFields;
+            for (int field : fields) bytes += fieldIsString[field] || fieldIsDate[field] ? 56 + maxFieldSize[field] : 16;
+            return bytes;
+        }
+
+        /**
+         * Puts a row cache in front of get, or removes it when cache is null.
+         */
+        public void setCache(RowCache cache) {
+            this.cache = cache;
+        }
+
+        public RowCache getCache() {
+            return cache;
+        }
+
+        /**
+         * Loads the fence index Prog1A wrote next to the .bin, so date searches probe memory instead of the file. A
+         * missing or stale sidecar is ignored and searches fall back to binary search over the file.
+         * @name loadFences
+         * @param binFilename path of the .bin file this DB was opened from
+         */
+        public void loadFences(String binFilename) {
+            try {
+                fences = FenceIndex.read(new File(FenceIndex.getSidecarName(binFilename)), numEntries, file.length(),
+                        new File(binFilename).lastModified(), FenceIndex.fingerprint(this, numEntries));
+            } catch (IOException ex) {
+                System.out.println("Fence index could not be read, searching the bin file instead");
+                fences = null;
+            }
+        }
+
+        public FenceIndex getFences() {
+            return fences;
+        }
+
         /**
          * Queries database by date.
          * @name query
@@ -147,40 +587,190 @@ public class Prog1B {
          * @return list of all entries
          */
         public List<Object[]> query(Date date, int startIndex, int endIndex) {
-            List<Object[]> retval = new LinkedList<>(); // return value
-            if (endIndex > startIndex) {
-                // indices at 1/3 and 2/3 of the way between startIndex and endIndex
-                // order is start, leftMid, rightMid, end
-                int leftMidIndex = startIndex + (endIndex - startIndex) / 3;
-                int rightMidIndex = startIndex + 2 * (endIndex - startIndex) / 3;
+            return query(Prog1A.Schema.toEpochDay(date), startIndex, endIndex);
+        }
+
+        /**
+         * Queries database by date, given as an epoch day. Two binary searches find the contiguous run of rows with
+         * that date, which is then read sequentially.
+         * @name query
+         * @param day query date as an epoch day
+         * @param startIndex starting index of the query, inclusive
+         * @param endIndex ending index of the query, exclusive
+         * @return list of all entries, in file order
+         */
+        public List<Object[]> query(int day, int startIndex, int endIndex) {
+            return query(day, startIndex, endIndex, allFields);
+        }
+
+        /**
+         * Queries database by date like query(int, int, int), decoding only the requested fields.
+         * @name query
+         * @param day query date as an epoch day
+         * @param startIndex starting index of the query, inclusive
+         * @param endIndex ending index of the query, exclusive
+         * @param fields indices of the fields to decode
+         * @return list of all entries, in file order, with null for every field not requested (see get(int, int[]))
+         */
+        public List<Object[]> query(int day, int startIndex, int endIndex, int fields[]) {
+            long start = Stats.start(); // start time of the query, when stats are on
+            int from = lowerBound(day, startIndex, endIndex);
+            List<Object[]> retval = getRange(from, lowerBound(day + 1, from, endIndex), fields);
+            QUERY_LATENCY.recordSince(start);
+            return retval;
+        }
+
+        /**
+         * Queries database for every entry decided between two dates, both inclusive.
+         * @name queryRange
+         * @param from first date of the range
+         * @param to last date of the range
+         * @return list of all entries, in file order
+         */
+        public List<Object[]> queryRange(Date from, Date to) {
+            return queryRange(Prog1A.Schema.toEpochDay(from), Prog1A.Schema.toEpochDay(to));
+        }
 
+        /**
+         * Queries database for every entry decided between two dates, given as epoch days, both inclusive.
+         * @name queryRange
+         * @param from first date of the range
+         * @param to last date of the range
+         * @return list of all entries, in file order
+         */
+        public List<Object[]> queryRange(int from, int to) {
+            return queryRange(from, to, allFields);
+        }
+
+        /**
+         * Queries database for every entry decided between two dates like queryRange(int, int), decoding only the
+         * requested fields.
+         * @name queryRange
+         * @param from first date of the range, as an epoch day
+         * @param to last date of the range, as an epoch day
+         * @param fields indices of the fields to decode
+         * @return list of all entries, in file order, with null for every field not requested (see get(int, int[]))
+         */
+        public List<Object[]> queryRange(int from, int to, int fields[]) {
+            long start = Stats.start(); // start time of the query, when stats are on
+            int first = lowerBound(from, 0, numEntries);
+            List<Object[]> retval = getRange(first, lowerBound(to + 1, first, numEntries), fields);
+            RANGE_QUERY_LATENCY.recordSince(start);
+            return retval;
+        }
+
+        /**
+         * Binary search over the rows, which are sorted by dateDecision.
+         * @name lowerBound
+         * @param day date as an epoch day
+         * @param startIndex starting index of the search, inclusive
+         * @param endIndex ending index of the search, exclusive
+         * @return the first index in [startIndex, endIndex) whose date is on or after day, or endIndex if none is
+         */
+        public int lowerBound(int day, int startIndex, int endIndex) {
+            if (fences != null) return Math.max(startIndex, Math.min(endIndex, fences.lowerBound(this, day)));
+            while (startIndex < endIndex) {
+                int midIndex = (startIndex + endIndex) >>> 1;
+                if (getDecisionDay(midIndex) < day) startIndex = midIndex + 1;
+                else endIndex = midIndex;
+            }
+            return startIndex;
+        }
+
+        /**
+         * Reads the entries in [startIndex, endIndex) in file order, with one I/O per run of getAll.
+         * @name getRange
+         * @param startIndex first entry, inclusive
+         * @param endIndex last entry, exclusive
+         * @param fields indices of the fields to decode
+         * @return list of the entries
+         */
+        public List<Object[]> getRange(int startIndex, int endIndex, int fields[]) {
+            int indices[] = new int[Math.max(0, endIndex - startIndex)];
+            for (int i = 0; i < indices.length; i++) indices[i] = startIndex + i;
+            return Arrays.asList(getAll(indices, fields));
+        }
+
+        /**
+         * Points a view at an entry without decoding anything. A mapped file is read in place; otherwise the row is
+         * read into the view's own buffer, which is reused by the view's next entry. The row cache is not used.
+         * @name getView
+         * @param index entry to view
+         * @param view view to point at the entry, created once with newView and reused
+         * @return the view
+         */
+        public RowView getView(int index, RowView view) {
+            if (index < 0 || index >= numEntries) throw new IndexOutOfBoundsException();
+            long start = Stats.start(); // start time of the get, when stats are on
+            ROW_VIEWS.increment();
+            if (columnStart != null) view.set(index, mapped, -1); // fields are located one at a time
+            else if (mapped != null) view.set(index, mapped, (int) (dataStart + (long) index * entrySize));
+            else {
                 try {
-                    // entries for leftMidIndex, rightMidIndex, respectively
-                    Object[] leftEntry = get(leftMidIndex), rightEntry = get(rightMidIndex);
-
-                    // dates for leftMidIndex, rightMidIndex, respectively
-                    Date leftDate = Prog1A.Data.DATE_FORMAT.parse((String) leftEntry[DATEDECISION_INDEX]);
-                    Date rightDate = Prog1A.Data.DATE_FORMAT.parse((String) rightEntry[DATEDECISION_INDEX]);
-
-                    // add query points to return value if query match is found
-                    if (leftDate.equals(date))
-                        retval.add(leftEntry);
-                    if (rightDate.equals(date) && leftMidIndex != rightMidIndex)
-                        retval.add(rightEntry);
-
-                    // recurse lower, if one data point is a match, then check partitions on both sides of it
-                    if (date.before(leftDate) || date.equals(leftDate))
-                        retval.addAll(query(date, startIndex, leftMidIndex));
-                    if (date.after(rightDate) || date.equals(rightDate))
-                        retval.addAll(query(date, rightMidIndex + 1, endIndex));
-                    if ((date.after(leftDate) && date.before(rightDate)) || date.equals(leftDate) || date.equals(rightDate))
-                        retval.addAll(query(date, leftMidIndex + 1, rightMidIndex));
-                } catch (ParseException ex) {
-                    System.out.println("Corrupt date was found in the bin data. Exiting...");
+                    view.set(index, readFully(view.buffer(entrySize), dataStart + (long) index * entrySize, entrySize), 0);
+                } catch (IOException ex) {
+                    System.out.println("Could not properly read from the file.");
                     System.exit(1);
                 }
             }
-            return retval;
+            GET_LATENCY.recordSince(start);
+            return view;
+        }
+
+        /**
+         * @return a view of this DB, not yet pointing at any entry
+         */
+        public RowView newView() {
+            return new RowView(this);
+        }
+
+        /**
+         * Passes every entry in [startIndex, endIndex) to the action, in file order, as one view that is moved from
+         * row to row, so no garbage is made per row. A row-major file read through the channel is read in runs of up to
+         * MAX_RUN_BYTES, one I/O each. The view is only valid until the action returns.
+         * @name scan
+         * @param startIndex first entry, inclusive
+         * @param endIndex last entry, exclusive
+         * @param action consumer of each entry
+         */
+        public void scan(int startIndex, int endIndex, Consumer<RowView> action) {
+            if (startIndex < 0 || endIndex > numEntries) throw new IndexOutOfBoundsException();
+            RowView view = newView();
+            if (columnStart != null || mapped != null) {
+                for (int index = startIndex; index < endIndex; index++) action.accept(getView(index, view));
+                return;
+            }
+            int runRows = Math.max(1, MAX_RUN_BYTES / entrySize); // rows read with one I/O
+            try {
+                for (int runStart = startIndex; runStart < endIndex; runStart += runRows) {
+                    int numRows = Math.min(runRows, endIndex - runStart); // rows of this run
+                    ByteBuffer run = readFully(view.buffer(numRows * entrySize), dataStart + (long) runStart * entrySize,
+                            numRows * entrySize); // bytes of the run
+                    ROW_VIEWS.add(numRows);
+                    for (int i = 0; i < numRows; i++) {
+                        view.set(runStart + i, run, i * entrySize);
+                        action.accept(view);
+                    }
+                }
+            } catch (IOException ex) {
+                System.out.println("Could not properly read from the file.");
+                System.exit(1);
+            }
+        }
+
+        /**
+         * Passes every entry decided between two dates, both inclusive, to the action as a view.
+         * @name query
+         * @param from first date, as an epoch day
+         * @param to last date, as an epoch day
+         * @param action consumer of each entry, in file order
+         * @see #scan(int, int, Consumer)
+         */
+        public void query(int from, int to, Consumer<RowView> action) {
+            long start = Stats.start(); // start time of the query, when stats are on
+            int first = lowerBound(from, 0, numEntries);
+            scan(first, lowerBound(to + 1, first, numEntries), action);
+            (from == to ? QUERY_LATENCY : RANGE_QUERY_LATENCY).recordSince(start);
         }
 
         /**
@@ -190,4 +780,711 @@ public class Prog1B {
             return numEntries;
         }
     }
+
+    /**
+     * Flyweight over one entry of a BinaryFileDB, pointed at a new entry by getView or scan instead of being created
+     * per row. Fields are read from the file's bytes only when asked for: getInt and getBytes allocate nothing, and
+     * appendTo writes a field as get() would report it into a caller's StringBuilder without allocating for ASCII
+     * text. A view must only be used by one thread, and its contents change when it is moved to another entry.
+     *
+     * @name RowView
+     * @author Bohan Li
+     */
+    public static class RowView {
+        private final BinaryFileDB db; // DB the view reads
+        private ByteBuffer buffer;     // bytes holding the entry: the file mapping, or ownBuffer
+        private int base;              // position of a row-major entry in buffer, -1 to locate each field separately
+        private int index;             // entry the view points at
+        private ByteBuffer ownBuffer;  // bytes read from the file when it is not mapped, grown as needed
+
+        private RowView(BinaryFileDB db) {
+            this.db = db;
+        }
+
+        void set(int index, ByteBuffer buffer, int base) {
+            this.index = index;
+            this.buffer = buffer;
+            this.base = base;
+        }
+
+        /**
+         * @return the view's own buffer, with room for at least length bytes
+         */
+        ByteBuffer buffer(int length) {
+            if (ownBuffer == null || ownBuffer.capacity() < length)
+                ownBuffer = ByteBuffer.allocate(Math.max(length, ownBuffer == null ? 0 : 2 * ownBuffer.capacity()));
+            return ownBuffer;
+        }
+
+        /**
+         * @return position in buffer of the field's bytes, reading them first on an unmapped column-major file
+         */
+        private int locate(int field) {
+            if (base >= 0) return base + db.fieldOffset[field];
+            long position = db.fieldPosition(index, field); // position of the field in the file
+            if (db.mapped != null) return (int) position;
+            try {
+                buffer = db.readFully(buffer(db.storedSize(field)), position, db.storedSize(field));
+            } catch (IOException ex) {
+                System.out.println("Could not properly read from the file.");
+                System.exit(1);
+            }
+            return 0;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return true if the field holds ints, which getInt reports; blanks are -1
+         */
+        public boolean isInt(int field) {
+            return !db.fieldIsString[field] && !db.fieldIsDate[field];
+        }
+
+        /**
+         * @return the stored int of an int field, or the epoch day of a typed date field
+         */
+        public int getInt(int field) {
+            if (db.fieldIsString[field]) throw new IllegalArgumentException("Field " + field + " does not hold ints");
+            return buffer.getInt(locate(field));
+        }
+
+        /**
+         * Copies the stored bytes of a field, padding included.
+         * @return the number of bytes copied, the field's stored size
+         */
+        public int getBytes(int field, byte dest[], int offset) {
+            int position = locate(field), length = db.storedSize(field);
+            for (int i = 0; i < length; i++) dest[offset + i] = buffer.get(position + i);
+            return length;
+        }
+
+        /**
+         * @return the field as get() decodes it, converted to a String
+         */
+        public String getString(int field) {
+            StringBuilder value = new StringBuilder(db.storedSize(field));
+            appendTo(value, field);
+            return value.toString();
+        }
+
+        /**
+         * Appends the field as get() decodes it: strings with their padding, ints in decimal, and dates as M/d/yyyy
+         * padded to the field's width.
+         */
+        public void appendTo(StringBuilder out, int field) {
+            int position = locate(field);
+            if (isInt(field)) {
+                out.append(buffer.getInt(position));
+            } else if (db.fieldIsDate[field]) {
+                int length = out.length();
+                appendDate(out, buffer.getInt(position));
+                while (out.length() - length < db.maxFieldSize[field]) out.append(' ');
+            } else {
+                int length = db.maxFieldSize[field];
+                for (int i = 0; i < length; i++) {
+                    byte b = buffer.get(position + i);
+                    if (b < 0) { // not ASCII, so decode the whole value with the default charset as get() does
+                        byte value[] = new byte[length];
+                        getBytes(field, value, 0);
+                        out.setLength(out.length() - i);
+                        out.append(new String(value));
+                        return;
+                    }
+                    out.append((char) b);
+                }
+            }
+        }
+
+        /**
+         * Appends an epoch day as M/d/yyyy, the same text as Prog1A.Schema.formatEpochDay, without allocating.
+         */
+        private static void appendDate(StringBuilder out, int epochDay) {
+            if (epochDay == Prog1A.Schema.BLANK_DATE) return;
+            // civil-from-days: count in 400-year eras starting on March 1st, 0000
+            long days = epochDay + 719468L;
+            long era = Math.floorDiv(days, 146097);
+            long dayOfEra = days - era * 146097;
+            long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+            long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+            long monthIndex = (5 * dayOfYear + 2) / 153; // months from March
+            long day = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+            long month = monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+            long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+            out.append(month).append('/').append(day).append('/').append(year);
+        }
+    }
+
+    /**
+     * Sparse index over the dateDecision column of a sorted .bin: the date of the first row of every block of rows,
+     * where a block is about one page of the file. It is stored in a small sidecar file next to the .bin, holding a
+     * magic number, the row count, length, last-modified time and a CRC-32 of the first and last rows of the .bin it
+     * was built from (so a stale sidecar is detected, even for a .bin rewritten at the same size), the block size in
+     * rows, and then one epoch day per block.
+     *
+     * A lower-bound search binary searches the in-memory days for the block that must hold the answer and then reads
+     * just that block's dates with one I/O, instead of probing the file log2(n) times.
+     *
+     * @name FenceIndex
+     * @author Bohan Li
+     */
+    public static class FenceIndex {
+        public static final int FENCE_MAGIC = 0x46454e32; // "FEN2"; FEN1 sidecars did not record a fingerprint
+        private static final int PAGE_SIZE = 4096;        // bytes of the date column covered by one fence
+
+        private final int blockRows;  // rows per block
+        private final int firstDay[]; // epoch day of the first row of each block
+
+        private FenceIndex(int blockRows, int firstDay[]) {
+            this.blockRows = blockRows;
+            this.firstDay = firstDay;
+        }
+
+        /**
+         * @return path of the sidecar file for the given .bin
+         */
+        public static String getSidecarName(String binFilename) {
+            return binFilename + ".fence";
+        }
+
+        /**
+         * Builds the fences of an open DB by reading the date of the first row of every block.
+         * @name build
+         * @param db DB to index, sorted by dateDecision
+         * @return the fence index
+         */
+        public static FenceIndex build(BinaryFileDB db) {
+            // a block spans a page of rows, or a page of the date column in a column-major file
+            int rowBytes = db.columnStart == null ? db.entrySize : db.storedSize(DATEDECISION_INDEX);
+            int blockRows = Math.max(1, PAGE_SIZE / rowBytes);
+            int firstDay[] = new int[(db.numEntries + blockRows - 1) / blockRows];
+            for (int i = 0; i < firstDay.length; i++) firstDay[i] = db.getDecisionDay(i * blockRows);
+            return new FenceIndex(blockRows, firstDay);
+        }
+
+        /**
+         * Builds the fences of a .bin file and writes them to its sidecar.
+         * @name writeFor
+         * @param binFilename path of the .bin file
+         */
+        public static void writeFor(String binFilename) throws IOException {
+            RandomAccessFile binFile = new RandomAccessFile(new File(binFilename), "r");
+            BinaryFileDB db = new BinaryFileDB(binFile);
+            FenceIndex fences = build(db);
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(getSidecarName(binFilename))));
+            output.writeInt(FENCE_MAGIC);
+            output.writeInt(db.getNumEntries());
+            output.writeLong(binFile.length());
+            output.writeLong(new File(binFilename).lastModified());
+            output.writeLong(fingerprint(db, db.getNumEntries()));
+            output.writeInt(fences.blockRows);
+            output.writeInt(fences.firstDay.length);
+            for (int day : fences.firstDay) output.writeInt(day);
+            output.close();
+            binFile.close();
+        }
+
+        /**
+         * Brings the sidecar of a .bin that rows were appended to up to date. If the sidecar matched the .bin before
+         * the append, only the fences of the new blocks are added; a partly filled last block keeps its first row, so
+         * its fence is still right. Otherwise the sidecar is written again from scratch.
+         * @name appendFor
+         * @param binFilename path of the .bin file
+         * @param oldNumEntries row count of the .bin before the append
+         * @param oldLength length of the .bin before the append, in bytes
+         * @param oldModified last-modified time of the .bin before the append
+         */
+        public static void appendFor(String binFilename, int oldNumEntries, long oldLength, long oldModified)
+                throws IOException {
+            File sidecar = new File(getSidecarName(binFilename));
+            RandomAccessFile binFile = new RandomAccessFile(new File(binFilename), "r");
+            BinaryFileDB db = new BinaryFileDB(binFile);
+            // the rows before the append are unchanged, so their fingerprint is what the old sidecar recorded
+            FenceIndex oldFences = read(sidecar, oldNumEntries, oldLength, oldModified, fingerprint(db, oldNumEntries));
+            if (oldFences == null) {
+                binFile.close();
+                writeFor(binFilename);
+                return;
+            }
+            int blockRows = oldFences.blockRows;
+            int numBlocks = (db.getNumEntries() + blockRows - 1) / blockRows;
+            RandomAccessFile output = new RandomAccessFile(sidecar, "rw");
+            output.seek(sidecar.length());
+            for (int i = oldFences.firstDay.length; i < numBlocks; i++) output.writeInt(db.getDecisionDay(i * blockRows));
+            output.seek(4);
+            output.writeInt(db.getNumEntries());
+            output.writeLong(binFile.length());
+            output.writeLong(new File(binFilename).lastModified());
+            output.writeLong(fingerprint(db, db.getNumEntries()));
+            output.writeInt(blockRows);
+            output.writeInt(numBlocks);
+            output.close();
+            binFile.close();
+        }
+
+        /**
+         * Reads a sidecar written by writeFor.
+         * @name read
+         * @param sidecar the sidecar file
+         * @param numEntries row count of the open .bin
+         * @param binLength length of the open .bin, in bytes
+         * @param binModified last-modified time of the open .bin
+         * @param binFingerprint fingerprint of the open .bin's rows
+         * @return the fence index, or null if the sidecar does not exist or was built from a different .bin
+         */
+        public static FenceIndex read(File sidecar, int numEntries, long binLength, long binModified,
+                                      long binFingerprint) throws IOException {
+            if (!sidecar.exists()) return null;
+            DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)));
+            try {
+                if (input.readInt() != FENCE_MAGIC || input.readInt() != numEntries || input.readLong() != binLength
+                        || input.readLong() != binModified || input.readLong() != binFingerprint)
+                    return null;
+                int blockRows = input.readInt();
+                int firstDay[] = new int[input.readInt()];
+                for (int i = 0; i < firstDay.length; i++) firstDay[i] = input.readInt();
+                return new FenceIndex(blockRows, firstDay);
+            } finally {
+                input.close();
+            }
+        }
+
+        /**
+         * @name fingerprint
+         * @param db DB to fingerprint
+         * @param numEntries number of leading rows of the DB to consider
+         * @return CRC-32 of the stored bytes of the first and the last of those rows
+         */
+        public static long fingerprint(BinaryFileDB db, int numEntries) throws IOException {
+            CRC32 crc = new CRC32();
+            if (numEntries == 0) return crc.getValue();
+            for (int index : new int[] {0, numEntries - 1}) {
+                for (int field = 0; field < db.numFields; field++)
+                    crc.update(db.read(db.fieldPosition(index, field), db.storedSize(field)));
+            }
+            return crc.getValue();
+        }
+
+        /**
+         * @name lowerBound
+         * @param db DB the fences were built from
+         * @param day date as an epoch day
+         * @return the first row of the DB whose date is on or after day, or the row count if none is
+         */
+        public int lowerBound(BinaryFileDB db, int day) {
+            // first block starting on or after day; the answer is in the block before it
+            int low = 0, high = firstDay.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (firstDay[mid] < day) low = mid + 1;
+                else high = mid;
+            }
+            if (low == 0) return 0;
+            int startIndex = (low - 1) * blockRows, endIndex = Math.min(db.numEntries, low * blockRows);
+            if (!db.fieldIsDate[DATEDECISION_INDEX]) {
+                // text dates cannot be scanned out of the block, so binary search it row by row
+                while (startIndex < endIndex) {
+                    int midIndex = (startIndex + endIndex) >>> 1;
+                    if (db.getDecisionDay(midIndex) < day) startIndex = midIndex + 1;
+                    else endIndex = midIndex;
+                }
+                return startIndex;
+            }
+            try {
+                // one read covers the block: whole rows in a row-major file, the date column in a column-major one
+                int stride = db.columnStart == null ? db.entrySize : 4;
+                ByteBuffer block = db.read(db.fieldPosition(startIndex, DATEDECISION_INDEX),
+                        (endIndex - startIndex - 1) * stride + 4);
+                int base = block.position();
+                for (int index = startIndex; index < endIndex; index++) {
+                    if (block.getInt(base + (index - startIndex) * stride) >= day) return index;
+                }
+            } catch (IOException ex) {
+                System.out.println("Could not properly read from the file.");
+                System.exit(1);
+            }
+            return endIndex;
+        }
+
+        /**
+         * @return number of fences held in memory
+         */
+        public int size() {
+            return firstDay.length;
+        }
+    }
+
+    /**
+     * Size-bounded LRU cache of decoded rows, keyed by row index and the projection the row was decoded with. A full
+     * row also satisfies any projection of it. Capacity is in bytes of estimated heap footprint. The cache is split
+     * into segments, each with its own lock and LRU order, so concurrent readers rarely contend.
+     *
+     * @name RowCache
+     * @author Bohan Li
+     */
+    public static class RowCache {
+        private static final int SEGMENTS = 16; // number of independently locked segments
+        private static final long ENTRY_OVERHEAD = 64; // map entry, boxed key and CachedRow, bytes
+
+        private final long capacityBytes;       // total capacity, bytes
+        private final List<LinkedHashMap<Integer, CachedRow>> segments = new ArrayList<>();
+        private final long segmentBytes[] = new long[SEGMENTS]; // bytes held by each segment
+        private final LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder();
+
+        /**
+         * A decoded row and the fields it was decoded with.
+         */
+        private static class CachedRow {
+            final int fields[];
+            final Object[] row;
+            final long bytes;
+
+            CachedRow(int fields[], Object[] row, long bytes) {
+                this.fields = fields;
+                this.row = row;
+                this.bytes = bytes;
+            }
+
+            boolean isFull() {
+                return fields.length == row.length;
+            }
+
+            /**
+             * @return true if the row was decoded with every field or with the same projection
+             */
+            boolean covers(int fields[]) {
+                return isFull() || this.fields == fields || Arrays.equals(this.fields, fields);
+            }
+        }
+
+        public RowCache(long capacityBytes) {
+            this.capacityBytes = capacityBytes;
+            for (int i = 0; i < SEGMENTS; i++) segments.add(new LinkedHashMap<>(16, 0.75f, true));
+        }
+
+        /**
+         * @return the cached row if it was decoded with an equal projection or with every field, else null
+         */
+        public Object[] get(int index, int fields[]) {
+            LinkedHashMap<Integer, CachedRow> segment = segments.get(segmentOf(index));
+            CachedRow cached;
+            synchronized (segment) {
+                cached = segment.get(index);
+            }
+            if (cached != null && cached.covers(fields)) {
+                hits.increment();
+                return cached.row;
+            }
+            misses.increment();
+            return null;
+        }
+
+        /**
+         * Caches a decoded row, evicting least recently used rows of its segment until the segment fits. A cached full
+         * row is not replaced by a projection of it.
+         */
+        public void put(int index, int fields[], Object[] row, long rowBytes) {
+            int segmentIndex = segmentOf(index);
+            LinkedHashMap<Integer, CachedRow> segment = segments.get(segmentIndex);
+            CachedRow cached = new CachedRow(fields, row, rowBytes + ENTRY_OVERHEAD);
+            synchronized (segment) {
+                CachedRow existing = segment.get(index); // also marks the row as recently used
+                if (existing != null && existing.isFull() && !cached.isFull()) return;
+                CachedRow replaced = segment.put(index, cached);
+                segmentBytes[segmentIndex] += cached.bytes - (replaced == null ? 0 : replaced.bytes);
+                Iterator<CachedRow> eldest = segment.values().iterator();
+                while (segmentBytes[segmentIndex] > capacityBytes / SEGMENTS && eldest.hasNext()) {
+                    segmentBytes[segmentIndex] -= eldest.next().bytes;
+                    eldest.remove();
+                    evictions.increment();
+                }
+            }
+        }
+
+        public long getHits() {
+            return hits.sum();
+        }
+
+        public long getMisses() {
+            return misses.sum();
+        }
+
+        public long getEvictions() {
+            return evictions.sum();
+        }
+
+        /**
+         * @return estimated bytes currently held
+         */
+        public long getSizeBytes() {
+            long bytes = 0;
+            for (int i = 0; i < SEGMENTS; i++) {
+                synchronized (segments.get(i)) {
+                    bytes += segmentBytes[i];
+                }
+            }
+            return bytes;
+        }
+
+        private static int segmentOf(int index) {
+            return (index * 0x9e3779b9 >>> 28) & (SEGMENTS - 1);
+        }
+
+        @Override
+        public String toString() {
+            long lookups = getHits() + getMisses();
+            return String.format("row cache: %d hits, %d misses (%.1f%% hit rate), %d evictions, %d/%d bytes",
+                    getHits(), getMisses(), lookups == 0 ? 0.0 : 100.0 * getHits() / lookups, getEvictions(),
+                    getSizeBytes(), capacityBytes);
+        }
+    }
+
+    /**
+     * Process-wide counters and latency histograms for the read and index paths, off unless enable() is called.
+     * Metrics are created once, as static fields of the classes they measure, and cost a single branch on a static
+     * volatile flag per update while stats are off. Once enabled they can be read through the platform MBean server under
+     * Prog:type=Stats (for example with jconsole), with each counter as an attribute and each histogram as its count,
+     * p50, p99, p999 and max in nanoseconds, and dumped with report().
+     *
+     * @name Stats
+     * @author Bohan Li
+     */
+    public static class Stats {
+        public static final String OBJECT_NAME = "Prog:type=Stats"; // name the MBean is registered under
+        private static volatile boolean enabled; // set once; volatile so threads already running see it
+        private static final Map<String, Object> metrics = new TreeMap<>(); // counters and histograms by name
+
+        private Stats() {
+        }
+
+        /**
+         * Turns recording on and registers the MBean.
+         * @name enable
+         */
+        public static void enable() {
+            enabled = true;
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new StatsMBean(), new ObjectName(OBJECT_NAME));
+            } catch (JMException ex) {
+                System.out.println("Stats could not be registered with JMX: " + ex.getMessage());
+            }
+        }
+
+        public static boolean isEnabled() {
+            return enabled;
+        }
+
+        /**
+         * @return the counter with the given name, created on first use
+         */
+        public static synchronized Counter counter(String name) {
+            Object metric = metrics.get(name);
+            if (metric == null) metrics.put(name, metric = new Counter());
+            return (Counter) metric;
+        }
+
+        /**
+         * @return the histogram with the given name, created on first use
+         */
+        public static synchronized Histogram histogram(String name) {
+            Object metric = metrics.get(name);
+            if (metric == null) metrics.put(name, metric = new Histogram());
+            return (Histogram) metric;
+        }
+
+        /**
+         * @return the start time of a timed operation, to pass to Histogram.recordSince, or 0 when stats are off
+         */
+        public static long start() {
+            return enabled ? System.nanoTime() : 0;
+        }
+
+        /**
+         * @name report
+         * @return one line per metric that recorded anything, latencies in microseconds
+         */
+        public static synchronized String report() {
+            StringBuilder report = new StringBuilder();
+            for (Map.Entry<String, Object> metric : metrics.entrySet()) {
+                if (metric.getValue() instanceof Counter) {
+                    long value = ((Counter) metric.getValue()).get();
+                    if (value != 0) report.append(String.format("%-24s %d%n", metric.getKey(), value));
+                    continue;
+                }
+                Histogram histogram = (Histogram) metric.getValue();
+                if (histogram.getCount() == 0) continue;
+                report.append(String.format("%-24s count %d, mean %.1f us, p50 %.1f us, p99 %.1f us, p999 %.1f us, "
+                        + "max %.1f us%n", metric.getKey(), histogram.getCount(), histogram.getMean() / 1e3,
+                        histogram.getPercentile(0.5) / 1e3, histogram.getPercentile(0.99) / 1e3,
+                        histogram.getPercentile(0.999) / 1e3, histogram.getMax() / 1e3));
+            }
+            return report.toString();
+        }
+
+        /**
+         * Count of events or units of work, such as reads or bytes read.
+         */
+        public static class Counter {
+            private final LongAdder value = new LongAdder();
+
+            public void increment() {
+                if (enabled) value.increment();
+            }
+
+            public void add(long amount) {
+                if (enabled) value.add(amount);
+            }
+
+            public long get() {
+                return value.sum();
+            }
+        }
+
+        /**
+         * Distribution of latencies in nanoseconds. Values below 16 get a bucket each; above that every power of two
+         * is split into 16 buckets, so a percentile is reported within about 6% of the true value in fixed memory.
+         */
+        public static class Histogram {
+            private static final int SUB_BUCKETS = 16; // buckets per power of two
+            private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS); // values recorded per bucket
+            private final LongAdder count = new LongAdder(), sum = new LongAdder();
+            private final AtomicLong max = new AtomicLong();
+
+            /**
+             * Records the time since start, as returned by Stats.start().
+             */
+            public void recordSince(long start) {
+                if (enabled && start != 0) record(System.nanoTime() - start);
+            }
+
+            public void record(long nanos) {
+                if (!enabled) return;
+                nanos = Math.max(0, nanos);
+                counts.incrementAndGet(bucketOf(nanos));
+                count.increment();
+                sum.add(nanos);
+                max.accumulateAndGet(nanos, Math::max);
+            }
+
+            private static int bucketOf(long value) {
+                if (value < SUB_BUCKETS) return (int) value;
+                int exponent = 63 - Long.numberOfLeadingZeros(value); // at least 4
+                return (exponent - 3) * SUB_BUCKETS + (int) (value >>> (exponent - 4)) - SUB_BUCKETS;
+            }
+
+            /**
+             * @return the largest value that falls in the bucket
+             */
+            private static long highestValueOf(int bucket) {
+                if (bucket < SUB_BUCKETS) return bucket;
+                int exponent = bucket / SUB_BUCKETS + 3;
+                return ((long) (bucket % SUB_BUCKETS + SUB_BUCKETS + 1) << (exponent - 4)) - 1;
+            }
+
+            public long getCount() {
+                return count.sum();
+            }
+
+            public double getMean() {
+                long n = getCount();
+                return n == 0 ? 0 : (double) sum.sum() / n;
+            }
+
+            public long getMax() {
+                return max.get();
+            }
+
+            /**
+             * @param quantile fraction of the values, such as 0.99
+             * @return the value that fraction of the recorded values is at or below, or 0 if none were recorded
+             */
+            public long getPercentile(double quantile) {
+                long rank = (long) Math.ceil(quantile * getCount()), seen = 0;
+                if (rank == 0) return 0;
+                for (int bucket = 0; bucket < counts.length(); bucket++) {
+                    seen += counts.get(bucket);
+                    if (seen >= rank) return Math.min(highestValueOf(bucket), getMax());
+                }
+                return getMax();
+            }
+        }
+
+        /**
+         * Exposes the metrics as read-only JMX attributes. The attribute list is taken when the MBean info is asked
+         * for, so metrics created later appear the next time a client connects.
+         */
+        private static class StatsMBean implements DynamicMBean {
+            private static final String[] HISTOGRAM_ATTRIBUTES = {"count", "p50", "p99", "p999", "max"};
+
+            @Override
+            public Object getAttribute(String attribute) throws AttributeNotFoundException {
+                synchronized (Stats.class) {
+                    Object metric = metrics.get(attribute);
+                    if (metric instanceof Counter) return ((Counter) metric).get();
+                    int separator = attribute.lastIndexOf('.');
+                    metric = separator < 0 ? null : metrics.get(attribute.substring(0, separator));
+                    if (metric instanceof Histogram) {
+                        Histogram histogram = (Histogram) metric;
+                        switch (attribute.substring(separator + 1)) {
+                            case "count": return histogram.getCount();
+                            case "p50": return histogram.getPercentile(0.5);
+                            case "p99": return histogram.getPercentile(0.99);
+                            case "p999": return histogram.getPercentile(0.999);
+                            case "max": return histogram.getMax();
+                        }
+                    }
+                }
+                throw new AttributeNotFoundException(attribute);
+            }
+
+            @Override
+            public AttributeList getAttributes(String[] attributes) {
+                AttributeList list = new AttributeList();
+                for (String attribute : attributes) {
+                    try {
+                        list.add(new Attribute(attribute, getAttribute(attribute)));
+                    } catch (AttributeNotFoundException ex) {
+                        // left out of the list, as the interface expects
+                    }
+                }
+                return list;
+            }
+
+            @Override
+            public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+                throw new AttributeNotFoundException("Stats are read-only");
+            }
+
+            @Override
+            public AttributeList setAttributes(AttributeList attributes) {
+                return new AttributeList();
+            }
+
+            @Override
+            public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+                throw new ReflectionException(new NoSuchMethodException(actionName));
+            }
+
+            @Override
+            public MBeanInfo getMBeanInfo() {
+                List<MBeanAttributeInfo> attributes = new ArrayList<>();
+                synchronized (Stats.class) {
+                    for (Map.Entry<String, Object> metric : metrics.entrySet()) {
+                        if (metric.getValue() instanceof Counter) {
+                            attributes.add(new MBeanAttributeInfo(metric.getKey(), "long", "counter", true, false, false));
+                            continue;
+                        }
+                        for (String part : HISTOGRAM_ATTRIBUTES)
+                            attributes.add(new MBeanAttributeInfo(metric.getKey() + "." + part, "long",
+                                    part.equals("count") ? "values recorded" : part + " latency, ns", true, false, false));
+                    }
+                }
+                return new MBeanInfo(Stats.class.getName(), "Query latency and I/O counters",
+                        attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+            }
+        }
+    }
 }
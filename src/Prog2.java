@@ -1,7 +1,17 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 import static java.lang.Math.pow;
 
@@ -14,84 +24,221 @@ import static java.lang.Math.pow;
  *
  * This assignment presented the task of implementing an efficient query structure of a database iin extendable hashing
  * using an in-memory directory and hash bucket file containing all file buckets. The program builds an index structure
- * of a database by inserting all elements one by one, and then gives users the ability to query the DB by entering a
+ * of a database by sorting all keys and writing every bucket once (or, with --insert-build, by inserting all elements
+ * one by one), and then gives users the ability to query the DB by entering a
  * numerical, up to 6 digit number representing the query prefix of the issue field in the DB.
  *
+ * Secondary indexes on the term, petitioner, lawType and majOpinWriter columns are built in the same scan. Query them
+ * by naming the column, as in term=1946 or majOpinWriter=078 (keys are zero-padded to the column's digits, as issue
+ * keys are to 6); a bare prefix queries the issue field. The naturalCourt and issueArea columns have no index and are
+ * answered by scanning the binary file, matching the prefix against each value zero-padded the same way, as in
+ * naturalCourt=17 or issueArea=01. Each matching row is printed with its value in the queried column.
+ *
  * This program was compiled using java 8. It relies on having "SCDB2019.bin" in the same directory as the compilation
  * folder, which it uses to read the binary file from. It also requires file read-write permissions in the working
  * directory, since it writes to a hash bucket file.
  *
- * Usage: java Prog2
+ * Usage: java Prog2 [--raf] [--cache-bytes N] [--insert-build] [--rebuild] [--pool-frames N] [--stats]
+ * Passing --raf reads rows through the RandomAccessFile instead of a memory mapping of the binary file. --cache-bytes N
+ * caches about N bytes of query result rows and prints the cache's counters on exit. --insert-build builds the index
+ * with one insert per row, as the original version of this program did.
+ *
+ * The directory is saved next to the hash bucket file, so later runs reopen the index instead of building it again.
+ * Rows appended with Prog1A --append are inserted into the saved index when it is reopened. Otherwise the saved index
+ * is rebuilt whenever it no longer matches SCDB2019.bin, or always with --rebuild. Buckets are cached in a buffer pool;
+ * --pool-frames N sets how many each index's pool holds and prints their hit rates on exit. --stats records row and
+ * bucket I/O, splits, directory growth and get/add/query latency percentiles, publishes them over JMX while the
+ * program runs, and prints them on exit.
  * Enter stdin queries to examine output: Ex. 0104
  */
 public class Prog2 {
     // indices for desired fields to be printed for the assignment
     public static int CASEID_INDEX = 0, DATEDECISION_INDEX = 4, CASENAME_INDEX = 14;
+    public static int[] PRINTED_FIELDS = {CASEID_INDEX, DATEDECISION_INDEX, CASENAME_INDEX, Index.KEY_INDEX}; // fields printEntry uses
     public static String BIN_FILE_NAME = "SCDB2019.bin"; // file name for be binary file
+    // secondary indexed columns: field index and decimal digits of each
+    public static int TERM_INDEX = 10, PETITIONER_INDEX = 17, LAWTYPE_INDEX = 45, MAJOPINWRITER_INDEX = 48;
+    // queryable columns without an index, answered by a scan
+    public static int NATURALCOURT_INDEX = 11, ISSUEAREA_INDEX = 40;
 
     public static void main(String args[]) throws IOException {
+        boolean memoryMapped = true; // whether rows are read through a memory mapping
+        long cacheBytes = 0; // capacity of the row cache, 0 for no cache
+        boolean bulkLoad = true; // build the index from one sorted scan instead of row-by-row inserts
+        boolean rebuild = false; // build the index even if a saved one matches the binary file
+        boolean poolStats = false; // print the bucket buffer pool's counters on exit
+        boolean stats = false; // record I/O counters and latencies, and print them on exit
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--raf")) memoryMapped = false;
+            else if (args[i].equals("--cache-bytes") && i + 1 < args.length) cacheBytes = Long.parseLong(args[++i]);
+            else if (args[i].equals("--insert-build")) bulkLoad = false;
+            else if (args[i].equals("--rebuild")) rebuild = true;
+            else if (args[i].equals("--stats")) stats = true;
+            else if (args[i].equals("--pool-frames") && i + 1 < args.length) {
+                HashBucketFile.POOL_FRAMES = Integer.parseInt(args[++i]);
+                poolStats = true;
+            }
+        }
+        if (stats) Prog1B.Stats.enable();
         RandomAccessFile file = new RandomAccessFile(new File(BIN_FILE_NAME), "r"); // file providing access to the DB
-        Index index = new Index(new BinaryFileDB(file)); // DB object constructed using the file
+        BinaryFileDB db = new BinaryFileDB(file, memoryMapped); // DB object constructed using the file
+        IndexCatalog catalog = new IndexCatalog(db, new File(BIN_FILE_NAME)); // issue index plus secondary indexes
+        catalog.add("issue", Index.KEY_INDEX, Index.KEY_DIGITS, Index.KEY_CARDINALITY);
+        catalog.add("term", TERM_INDEX, 4, 10);
+        catalog.add("petitioner", PETITIONER_INDEX, 3, 10);
+        catalog.add("lawType", LAWTYPE_INDEX, 1, 10);
+        catalog.add("majOpinWriter", MAJOPINWRITER_INDEX, 3, 10);
+        catalog.addScanned("naturalCourt", NATURALCOURT_INDEX, 4);
+        catalog.addScanned("issueArea", ISSUEAREA_INDEX, 2);
+        catalog.openOrBuild(rebuild, bulkLoad);
+        if (cacheBytes > 0) db.setCache(new Prog1B.RowCache(cacheBytes)); // after the build, so the scan does not fill it
         Scanner scanner = new Scanner(System.in);
         while (scanner.hasNext()) {
-            List<Object[]> queryResult = index.query(scanner.next());
-            queryResult.forEach(Prog2::printEntry);
+            String query = scanner.next(); // query entered by the user
+            int keyIndex = catalog.getKeyIndex(query); // column the query matches, printed with each entry
+            if (db.getCache() == null) {
+                System.out.println(catalog.query(query, entry -> printEntry(entry, keyIndex)));
+                continue;
+            }
+            List<Object[]> queryResult = catalog.query(query); // decoded through the row cache
+            queryResult.forEach(entry -> printEntry(entry, keyIndex));
             System.out.println(queryResult.size());
         }
+        if (db.getCache() != null) System.out.println(db.getCache());
+        if (poolStats) {
+            for (Index index : catalog.getIndexes())
+                System.out.println("Field " + index.getKeyIndex() + ": " + index.getHashBucketFile().getPool());
+        }
+        if (stats) System.out.print(Prog1B.Stats.report());
+    }
+
+    /**
+     * @param keyIndex field a query matches
+     * @return the fields printEntry uses for that query's entries: PRINTED_FIELDS with the queried field last
+     */
+    public static int[] printedFields(int keyIndex) {
+        int fields[] = PRINTED_FIELDS.clone(); // fields decoded for each entry
+        fields[fields.length - 1] = keyIndex;
+        return fields;
     }
 
     /**
      * @name printEntry
      * Prints appropriate information of the given data entry to the screen.
      * @param entry
+     * @param keyIndex field the query matched, printed last
+     */
+    private static void printEntry(Object[] entry, int keyIndex) {
+        System.out.println(entry[CASEID_INDEX] + " " + entry[DATEDECISION_INDEX] + " " + entry[CASENAME_INDEX] + " " + entry[keyIndex]);
+    }
+
+    /**
+     * @name printEntry
+     * Prints the same information for an entry viewed in place, reusing one line buffer.
+     * @param entry
+     * @param keyIndex field the query matched, printed last
      */
-    private static void printEntry(Object[] entry) {
-        System.out.println(entry[CASEID_INDEX] + " " + entry[DATEDECISION_INDEX] + " " + entry[CASENAME_INDEX] + " " + entry[Index.KEY_INDEX]);
+    private static void printEntry(Prog1B.RowView entry, int keyIndex) {
+        line.setLength(0);
+        entry.appendTo(line, CASEID_INDEX);
+        entry.appendTo(line.append(' '), DATEDECISION_INDEX);
+        entry.appendTo(line.append(' '), CASENAME_INDEX);
+        entry.appendTo(line.append(' '), keyIndex);
+        System.out.println(line);
     }
+    private static final StringBuilder line = new StringBuilder(); // reused by printEntry
 
     /**
      * @class Index
      * @author Bohan Li
      *
-     * Overhead class managing the entire extendable hashing structure.
+     * Overhead class managing the entire extendable hashing structure over one integer column of the DB. Keys are
+     * read as keyDigits-digit numbers in base keyCardinality, and queries match key prefixes in that form; blank
+     * keys and keys that do not fit in keyDigits digits are not indexed. Each index keeps its own hash bucket file
+     * and saved directory, named after its column.
      *
      * Constants:
-     * KEY_INDEX - index of the DB that the hash is built on
-     * KEY_CARDINALITY - number of different characters in each digit of the index prefix
-     * KEY_DIGITS - number of digits in the index field
+     * KEY_INDEX - index of the DB that the default (issue) hash is built on
+     * KEY_CARDINALITY - number of different characters in each digit of the issue prefix
+     * KEY_DIGITS - number of digits in the issue field
      *
      * Constructor:
-     * public Index(BinaryFileDB db) - constructs the index using the DB given by the binary file
+     * public Index(BinaryFileDB db) - constructs the issue index using the DB given by the binary file, in bulk
+     * public Index(BinaryFileDB db, boolean bulkLoad) - same, optionally inserting the rows one at a time instead
+     * public Index(BinaryFileDB db, int keyIndex, int keyDigits, int keyCardinality, boolean bulkLoad) - constructs
+     *     the index of any integer column
      *
      * Methods:
+     * public static Index open(BinaryFileDB db, File binFile)
+     * public static Index open(BinaryFileDB db, File binFile, int keyIndex, int keyDigits, int keyCardinality)
+     * public static void bulkLoadAll(BinaryFileDB db, List<Index> indexes)
+     * public void save(File binFile)
+     * public HashBucketFile getHashBucketFile()
+     * public int getKeyIndex()
      * public List<Object[]> query(String prefix)
+     * public int query(String prefix, Consumer<RowView> action)
+     * private int[] match(String prefix)
+     * private void load(long[] pairs)
+     * private void insertRows(int startIndex, File binFile)
      * private void insert(int key, int value)
+     * private void split(int bucketIndex)
      */
     public static class Index {
         public static int KEY_INDEX = 39; // field that directory is indexed on
         public static int KEY_CARDINALITY = 10; // number of different elements in key char, 10 since numeric
         public static int KEY_DIGITS = 6; // digits in index field
+        public static final String DIRECTORY_FILE_NAME = "hash_directory.bin"; // file name for the saved directory
+        private static final int DIRECTORY_MAGIC = 0x48445237; // "HDR7", first int of the directory file; records a row CRC
 
         private BinaryFileDB db; // access to the file
+        private final int keyIndex; // field that directory is indexed on
+        private final int keyDigits; // digits in index field
+        private final int keyCardinality; // number of different elements in key char
+        private final int[] keyField; // projection used to read only the key while building
         private int maxDepth; // depth of lowest level bucket
-        private Integer[] directory; // structure holding all bucket pointers, Integer so all entries are initialized to null
+        private Directory directory; // structure holding all bucket pointers, one per run of slots sharing a bucket
         private HashBucketFile hashBucketFile; // maintain pointer to hash bucket file
         private int numEntries; // number of entries in the index
+        // metrics, recorded only while Prog1B.Stats is enabled
+        private static final Prog1B.Stats.Counter SPLITS = Prog1B.Stats.counter("index.splits");
+        private static final Prog1B.Stats.Counter DIRECTORY_GROWTHS = Prog1B.Stats.counter("index.directoryGrowths");
+        private static final Prog1B.Stats.Histogram QUERY_LATENCY = Prog1B.Stats.histogram("index.query");
 
         public Index(BinaryFileDB db) {
-            this.db = db;
-            this.maxDepth = 1;
-            this.directory = new Integer[KEY_CARDINALITY];
-            this.hashBucketFile = new HashBucketFile();
-            this.numEntries = 0;
+            this(db, true);
+        }
+
+        /**
+         * @param db DB to index
+         * @param bulkLoad true to build the whole structure from one sorted scan of the key column, false to insert
+         *                 the rows one at a time
+         */
+        public Index(BinaryFileDB db, boolean bulkLoad) {
+            this(db, KEY_INDEX, KEY_DIGITS, KEY_CARDINALITY, bulkLoad);
+        }
+
+        /**
+         * @param db DB to index
+         * @param keyIndex integer field to index
+         * @param keyDigits digits of a key, and most digits of a query prefix
+         * @param keyCardinality radix of the key digits
+         * @param bulkLoad true to build the whole structure from one sorted scan of the key column, false to insert
+         *                 the rows one at a time
+         */
+        public Index(BinaryFileDB db, int keyIndex, int keyDigits, int keyCardinality, boolean bulkLoad) {
+            this(db, keyIndex, keyDigits, keyCardinality);
+            if (bulkLoad) {
+                bulkLoadAll(db, Collections.singletonList(this));
+                return;
+            }
 
             // insert pointers to all elements from the db file
             for (int index = 0; index < db.getNumEntries(); index++) {
                 try {
-                    int issue = (Integer) db.get(index)[KEY_INDEX]; // issue value of the object at the given index
-                    if (issue == -1) // ignore blank indices
+                    int key = (Integer) db.get(index, keyField)[keyIndex]; // key value of the object at the given index
+                    if (!isIndexable(key)) // ignore blank indices
                         continue;
-                    insert(issue, index);
+                    insert(key, index);
                     numEntries++;
                 } catch (ClassCastException ex) {
                     continue;
@@ -100,122 +247,790 @@ public class Prog2 {
         }
 
         /**
-         * insert(key, value)
+         * Creates an empty index, discarding whatever the column's bucket file held.
+         */
+        private Index(BinaryFileDB db, int keyIndex, int keyDigits, int keyCardinality) {
+            this(db, keyIndex, keyDigits, keyCardinality, 1, new Directory(keyCardinality),
+                    new HashBucketFile(getFileName(HashBucketFile.FILE_NAME, keyIndex)), 0);
+            // the saved directory stops describing the bucket file from here on
+            new File(getFileName(DIRECTORY_FILE_NAME, keyIndex)).delete();
+        }
+
+        private Index(BinaryFileDB db, int keyIndex, int keyDigits, int keyCardinality, int maxDepth,
+                      Directory directory, HashBucketFile hashBucketFile, int numEntries) {
+            if (Math.pow(keyCardinality, keyDigits) > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("Error: keys of " + keyDigits + " digits do not fit in an int");
+            this.db = db;
+            this.keyIndex = keyIndex;
+            this.keyDigits = keyDigits;
+            this.keyCardinality = keyCardinality;
+            this.keyField = new int[] {keyIndex};
+            this.maxDepth = maxDepth;
+            this.directory = directory;
+            this.hashBucketFile = hashBucketFile;
+            this.numEntries = numEntries;
+        }
+
+        /**
+         * @return the name of one of a column's index files: the base name itself for the issue column, so existing
+         * files keep working, and the base name tagged with the column otherwise
+         */
+        public static String getFileName(String baseName, int keyIndex) {
+            if (keyIndex == KEY_INDEX) return baseName;
+            int extension = baseName.lastIndexOf('.');
+            return baseName.substring(0, extension) + "_" + keyIndex + baseName.substring(extension);
+        }
+
+        /**
+         * @return true if the key is not blank and fits in the index's digits
+         */
+        private boolean isIndexable(int key) {
+            return key >= 0 && key < (int) pow(keyCardinality, keyDigits);
+        }
+
+        public int getKeyIndex() {
+            return keyIndex;
+        }
+
+        public HashBucketFile getHashBucketFile() {
+            return hashBucketFile;
+        }
+
+        /**
+         * open(db, binFile)
          *
-         * Helper method for inserting a key, value pair into the index structure.
-         * Post-condition: the new key, value pair is inserted into the Index unless there is no more space, in which
-         * a RuntimeException is thrown
+         * Reopens the issue index saved by save() without reading the DB. The directory file holds:
+         *   int magic, long length and long last-modified time of the binary file, int rows in the binary file,
+         *   long fingerprint of the first and last rows (Prog1B.FenceIndex.fingerprint), int key field, int key
+         *   digits, int key cardinality, int max depth, int bucket count, int indexed entries, int directory runs,
+         *   then the first slot and bucket id (Directory.NO_BUCKET for none) of each run as two ints, and a CRC32 of
+         *   everything before it as a long.
          *
-         * @param key
-         * @param value
+         * The index is only reused while the saved first and last rows still hold the same bytes, so a rewrite that
+         * keeps the length and last-modified time of the binary file still makes it stale. If rows were appended to
+         * the binary file since the index was saved, the new rows are inserted and the index is saved again instead
+         * of being rebuilt.
+         *
+         * @param db DB the index was built over
+         * @param binFile file the DB was opened from
+         * @return the saved index, or null if there is none, it is corrupt, or it was built from a different version
+         * of the binary file or bucket file
          */
-        private void insert(int key, int value) {
-            BucketEntry thisEntry = new BucketEntry(key, value); // bucket entry to be inserted
-            final int hash = key / (int) pow(KEY_CARDINALITY, KEY_DIGITS - maxDepth); // hashcode of the issue number
+        public static Index open(BinaryFileDB db, File binFile) {
+            return open(db, binFile, KEY_INDEX, KEY_DIGITS, KEY_CARDINALITY);
+        }
 
-            if (directory[hash] == null) {
-                directory[hash] = hashBucketFile.createBucket(maxDepth); // set pointer to new bucket
-                hashBucketFile.addElementToBucket(directory[hash], thisEntry);
+        /**
+         * open(db, binFile, keyIndex, keyDigits, keyCardinality)
+         *
+         * Reopens the index of any column saved by save().
+         *
+         * @return the saved index, or null if there is none, it is corrupt, it indexes the column differently, or it
+         * was built from a different version of the binary file or bucket file that is not the saved one plus
+         * appended rows
+         */
+        public static Index open(BinaryFileDB db, File binFile, int keyIndex, int keyDigits, int keyCardinality) {
+            File directoryFile = new File(getFileName(DIRECTORY_FILE_NAME, keyIndex));
+            File bucketFile = new File(getFileName(HashBucketFile.FILE_NAME, keyIndex));
+            if (!directoryFile.exists() || !bucketFile.exists()) return null;
+            try {
+                byte contents[] = Files.readAllBytes(directoryFile.toPath()); // whole directory file
+                if (contents.length < 64) return null;
+                ByteBuffer buffer = ByteBuffer.wrap(contents);
+                CRC32 checksum = new CRC32();
+                checksum.update(contents, 0, contents.length - 8);
+                if (buffer.getLong(contents.length - 8) != checksum.getValue()) return null;
+
+                if (buffer.getInt() != DIRECTORY_MAGIC) return null;
+                long binLength = buffer.getLong(); // length of the binary file when saved
+                long binModified = buffer.getLong(); // last-modified time of the binary file when saved
+                int savedRows = buffer.getInt(); // rows in the binary file when saved
+                long fingerprint = buffer.getLong(); // fingerprint of the first and last of those rows
+                boolean unchanged = savedRows <= db.getNumEntries()
+                        && fingerprint == Prog1B.FenceIndex.fingerprint(db, savedRows); // saved rows still in place
+                boolean fresh = unchanged && binLength == binFile.length() && binModified == binFile.lastModified()
+                        && savedRows == db.getNumEntries(); // nothing changed since the index was saved
+                boolean appended = unchanged && !fresh && binLength < binFile.length()
+                        && savedRows < db.getNumEntries(); // only rows were added since
+                if (!fresh && !appended || buffer.getInt() != keyIndex || buffer.getInt() != keyDigits
+                        || buffer.getInt() != keyCardinality)
+                    return null;
+                int maxDepth = buffer.getInt();
+                int numBuckets = buffer.getInt();
+                int numEntries = buffer.getInt();
+                if (bucketFile.length() < (long) numBuckets * HashBucketFile.BUCKET_SIZE) return null;
+                int numRuns = buffer.getInt();
+                if (numRuns < 1 || buffer.remaining() != 8L * numRuns + 8) return null;
+                int runStart[] = new int[numRuns], runBucket[] = new int[numRuns];
+                for (int i = 0; i < numRuns; i++) {
+                    runStart[i] = buffer.getInt();
+                    runBucket[i] = buffer.getInt();
+                }
+                Directory directory = new Directory((int) pow(keyCardinality, maxDepth), runStart, runBucket);
+                Index index = new Index(db, keyIndex, keyDigits, keyCardinality, maxDepth, directory,
+                        new HashBucketFile(bucketFile.getName(), numBuckets), numEntries);
+                if (appended) index.insertRows(savedRows, binFile);
+                return index;
+            } catch (IOException ex) {
+                return null;
             }
-            else if (!hashBucketFile.addElementToBucket(directory[hash], thisEntry)) { // bucket is full, time to split
-                Bucket thisBucket = hashBucketFile.getBucket(directory[hash]); // temporarily store bucket to be split
+        }
 
-                if (thisBucket.getDepth() == maxDepth) { // bucket is lowest level, allocate new directory
-                    if (maxDepth == KEY_DIGITS) { // cannot split any further, and bucket is full
-                        throw new RuntimeException("Error: element cannot be inserted, bucket is full at max depth");
+        /**
+         * insertRows(startIndex, binFile)
+         *
+         * Helper for open: inserts the rows appended to the DB after the index was saved, reading their keys in
+         * sequential runs, and saves the index again.
+         * Post-condition: the index covers every row of the DB and the directory file describes it
+         *
+         * @param startIndex first row the index does not cover yet
+         * @param binFile file the DB was opened from
+         */
+        private void insertRows(int startIndex, File binFile) {
+            final int chunkRows = 4096; // rows read per getRange call
+            // the saved directory stops describing the bucket file as soon as an insert writes to it
+            new File(getFileName(DIRECTORY_FILE_NAME, keyIndex)).delete();
+            for (int start = startIndex; start < db.getNumEntries(); start += chunkRows) {
+                List<Object[]> rows = db.getRange(start, Math.min(start + chunkRows, db.getNumEntries()), keyField);
+                int index = start; // DB index of the current row
+                for (Object[] row : rows) {
+                    Object key = row[keyIndex]; // key value of the row
+                    if (key instanceof Integer && isIndexable((Integer) key)) { // ignore blank and non-numeric keys
+                        insert((Integer) key, index);
+                        numEntries++;
                     }
+                    index++;
+                }
+            }
+            save(binFile);
+        }
 
-                    Integer[] newDirectory = new Integer[directory.length * KEY_CARDINALITY]; // allocate new directory
-                    maxDepth++;
+        /**
+         * save(binFile)
+         *
+         * Writes the directory, depth and bucket count to the directory file so open() can reuse the index.
+         * Post-condition: the directory file describes the hash bucket file as it is now
+         *
+         * @param binFile file the DB was opened from, recorded to detect a stale index
+         */
+        public void save(File binFile) {
+            hashBucketFile.flush(); // the directory must never describe buckets still only in memory
+            try {
+                CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(getFileName(DIRECTORY_FILE_NAME, keyIndex))), new CRC32());
+                DataOutputStream output = new DataOutputStream(checked);
+                output.writeInt(DIRECTORY_MAGIC);
+                output.writeLong(binFile.length());
+                output.writeLong(binFile.lastModified());
+                output.writeInt(db.getNumEntries());
+                output.writeLong(Prog1B.FenceIndex.fingerprint(db, db.getNumEntries()));
+                output.writeInt(keyIndex);
+                output.writeInt(keyDigits);
+                output.writeInt(keyCardinality);
+                output.writeInt(maxDepth);
+                output.writeInt(hashBucketFile.getNumBuckets());
+                output.writeInt(numEntries);
+                output.writeInt(directory.getNumRuns());
+                for (int i = 0; i < directory.getNumRuns(); i++) {
+                    output.writeInt(directory.getRunStart(i));
+                    output.writeInt(directory.getRunBucket(i));
+                }
+                output.flush();
+                output.writeLong(checked.getChecksum().getValue());
+                output.close();
+            } catch (IOException ex) {
+                System.out.println("Error: could not save the index directory.");
+            }
+        }
 
-                    // keep existing pointers to unchanged buckets
-                    for (int i = 0; i < directory.length; i++) {
-                        for (int j = KEY_CARDINALITY * i; j < KEY_CARDINALITY * (i + 1); j++) {
-                            if (i != hash) newDirectory[j] = directory[i];
-                        }
+        /**
+         * bulkLoadAll(db, indexes)
+         *
+         * Builds several empty indexes over one DB without any splits. The key columns of all of them are read
+         * together, once, in sequential runs, and each index then loads its own (key, index) pairs.
+         *
+         * @param db DB the indexes are over
+         * @param indexes empty indexes to build
+         */
+        public static void bulkLoadAll(BinaryFileDB db, List<Index> indexes) {
+            final int chunkRows = 4096; // rows read per getRange call
+            int keyFields[] = new int[indexes.size()]; // projection of every index's key
+            long pairs[][] = new long[indexes.size()][db.getNumEntries()]; // key in the high half, DB index in the low half
+            for (int i = 0; i < keyFields.length; i++) keyFields[i] = indexes.get(i).keyIndex;
+
+            for (int start = 0; start < db.getNumEntries(); start += chunkRows) {
+                List<Object[]> rows = db.getRange(start, Math.min(start + chunkRows, db.getNumEntries()), keyFields);
+                int index = start; // DB index of the current row
+                for (Object[] row : rows) {
+                    for (int i = 0; i < keyFields.length; i++) {
+                        Index thisIndex = indexes.get(i);
+                        Object key = row[keyFields[i]]; // key value of the row
+                        if (key instanceof Integer && thisIndex.isIndexable((Integer) key)) // ignore blank and non-numeric keys
+                            pairs[i][thisIndex.numEntries++] = (long) (Integer) key << 32 | index;
                     }
+                    index++;
+                }
+            }
+            for (int i = 0; i < keyFields.length; i++) indexes.get(i).load(pairs[i]);
+        }
 
-                    this.directory = newDirectory;
+        /**
+         * load(pairs)
+         *
+         * Helper for bulkLoadAll: sorts the index's (key, index) pairs. Each key range is then divided by its next
+         * digit until every piece fits in a bucket, which gives the final depth of every bucket, and the buckets are
+         * written to the file in key order.
+         * Post-condition: the index holds the first numEntries pairs
+         *
+         * @param pairs (key, DB index) pairs packed as key << 32 | index
+         */
+        private void load(long pairs[]) {
+            Arrays.sort(pairs, 0, numEntries);
 
-                    // reinsert elements in bucket
-                    Arrays.asList(thisBucket.getEntries()).forEach(entry -> insert(entry.getKey(), entry.getIndex()));
-                    insert(key, value);
-                } else { // split existing bucket
-                    // reset existing pointers to bucket
-                    final int oldHash = key / (int) pow(KEY_CARDINALITY, KEY_DIGITS - thisBucket.getDepth()); // old hashcode of the issue number, at its depth
-                    final int depthDiffFac = (int) pow(KEY_CARDINALITY, maxDepth - thisBucket.getDepth()); // factor of difference between the old hash and this one
-                    for (int i = oldHash * depthDiffFac; i < (oldHash + 1) * depthDiffFac; i++) {
-                        directory[i] = null;
-                    }
+            // leaves of the digit trie, in key order: {prefix, depth, first pair, end pair}
+            List<int[]> leaves = new ArrayList<>();
+            for (int from = 0, digit = 0; digit < keyCardinality; digit++) {
+                int to = partitionEnd(pairs, from, numEntries, digit, 1);
+                divide(pairs, from, to, digit, 1, leaves);
+                from = to;
+            }
 
-                    // reinsert elements in the bucket
-                    Arrays.asList(thisBucket.getEntries()).forEach(entry -> insert(entry.getKey(), entry.getIndex()));
+            for (int[] leaf : leaves) maxDepth = Math.max(maxDepth, leaf[1]);
+            directory = new Directory((int) pow(keyCardinality, maxDepth));
+            for (int[] leaf : leaves) {
+                int bucket = hashBucketFile.writeBucket(leaf[1], pairs, leaf[2], leaf[3]); // id of the written bucket
+                int width = (int) pow(keyCardinality, maxDepth - leaf[1]); // directory slots the bucket covers
+                directory.set(leaf[0] * width, (leaf[0] + 1) * width, bucket);
+            }
+            hashBucketFile.truncate();
+        }
+
+        /**
+         * divide(pairs, from, to, prefix, depth, leaves)
+         *
+         * Helper for load: records the pairs in [from, to), which all start with the given prefix of depth digits,
+         * as one leaf if they fit in a bucket and otherwise divides them by their next digit. A full key with more
+         * pairs than a bucket holds becomes one leaf, written as a bucket with overflow buckets. Empty ranges get no
+         * bucket, like directory slots no key was ever inserted into.
+         */
+        private void divide(long pairs[], int from, int to, int prefix, int depth, List<int[]> leaves) {
+            if (from == to) return;
+            if (to - from <= Bucket.BUCKET_MAX_ENTRIES || depth == keyDigits) {
+                leaves.add(new int[] {prefix, depth, from, to});
+                return;
+            }
+            for (int digit = 0; digit < keyCardinality; digit++) {
+                int childPrefix = prefix * keyCardinality + digit; // prefix one digit deeper
+                int end = partitionEnd(pairs, from, to, childPrefix, depth + 1);
+                divide(pairs, from, end, childPrefix, depth + 1, leaves);
+                from = end;
+            }
+        }
+
+        /**
+         * @return the end of the run of sorted pairs starting at from whose key begins with prefix, of depth digits
+         */
+        private int partitionEnd(long pairs[], int from, int to, int prefix, int depth) {
+            final int divisor = (int) pow(keyCardinality, keyDigits - depth); // strips the digits after the prefix
+            while (from < to && (int) (pairs[from] >>> 32) / divisor == prefix) from++;
+            return from;
+        }
+
+        /**
+         * insert(key, value)
+         *
+         * Helper method for inserting a key, value pair into the index structure.
+         * A full bucket is split, except at keyDigits depth where it holds a single key and the entry goes to the
+         * bucket's overflow chain instead.
+         * Post-condition: the new key, value pair is inserted into the Index
+         *
+         * @param key
+         * @param value
+         */
+        private void insert(int key, int value) {
+            BucketEntry thisEntry = new BucketEntry(key, value); // bucket entry to be inserted
+            final int hash = key / (int) pow(keyCardinality, keyDigits - maxDepth); // hashcode of the key
+
+            int bucket = directory.get(hash); // bucket the key belongs in
+            if (bucket == Directory.NO_BUCKET) {
+                bucket = hashBucketFile.createBucket(maxDepth);
+                directory.set(hash, hash + 1, bucket); // set pointer to new bucket
+                hashBucketFile.addElementToBucket(bucket, thisEntry);
+            }
+            else if (!hashBucketFile.addElementToBucket(bucket, thisEntry)) { // bucket is full
+                if (hashBucketFile.getDepth(bucket) == keyDigits) { // one key, cannot split any further
+                    hashBucketFile.addOverflowElement(bucket, thisEntry);
+                } else { // time to split
+                    split(bucket);
                     insert(key, value);
                 }
             }
         }
 
+        /**
+         * split(bucketIndex)
+         *
+         * Helper method for insert: divides a full bucket below keyDigits depth into buckets one digit deeper,
+         * growing the directory first if the bucket is already at the directory's depth. The bucket's entries are
+         * sorted, so each child is a contiguous run of them and is written with one bucket write; the first child
+         * reuses the old bucket.
+         * Post-condition: the bucket's directory slots point to its children, or to null for children without entries
+         *
+         * @param bucketIndex id of the full bucket
+         */
+        private void split(int bucketIndex) {
+            Bucket thisBucket = hashBucketFile.getBucket(bucketIndex); // temporarily store bucket to be split
+            final int depth = thisBucket.getDepth(); // depth of the bucket being split
+
+            SPLITS.increment();
+            if (depth == maxDepth) { // bucket is lowest level, deepen the directory
+                directory.scale(keyCardinality); // each old slot now covers keyCardinality new ones
+                maxDepth++;
+                DIRECTORY_GROWTHS.increment();
+            }
+
+            final int childDepth = depth + 1; // depth of the new buckets
+            final int divisor = (int) pow(keyCardinality, keyDigits - childDepth); // key / divisor = child prefix
+            final int childSlots = (int) pow(keyCardinality, maxDepth - childDepth); // directory slots per child
+            int keys[] = thisBucket.getKeys(), indices[] = thisBucket.getIndices();
+            long pairs[] = new long[keys.length]; // entries packed as key << 32 | index, still in key order
+            for (int i = 0; i < keys.length; i++) pairs[i] = (long) keys[i] << 32 | indices[i];
+
+            // clear the bucket's slots, then point each child's slots at it
+            final int parent = keys[0] / divisor / keyCardinality; // prefix shared by every key of the bucket
+            directory.set(parent * keyCardinality * childSlots, (parent + 1) * keyCardinality * childSlots,
+                    Directory.NO_BUCKET);
+            for (int from = 0, to; from < keys.length; from = to) {
+                final int child = keys[from] / divisor; // prefix of this run's child
+                for (to = from + 1; to < keys.length && keys[to] / divisor == child; ) to++;
+                int childBucket = from == 0 ? hashBucketFile.replaceBucket(bucketIndex, childDepth, pairs, from, to)
+                        : hashBucketFile.writeBucket(childDepth, pairs, from, to); // bucket holding the run
+                directory.set(child * childSlots, (child + 1) * childSlots, childBucket);
+            }
+        }
+
         /**
          * List<Object[]> query(String prefix)
          *
-         * Returns a list of all entries in the DB starting with the provided prefix, a numeric string of up to
-         * 6 characters.
+         * Returns a list of all entries in the DB whose key starts with the provided prefix, a numeric string of up
+         * to keyDigits characters, decoded through the DB's row cache if it has one.
          *
          * @param prefix the query prefix
          * @return list of entries, represented as Object[]
          */
         public List<Object[]> query(String prefix) {
-            List<Object[]> retval = new LinkedList<>(); // return value
+            long start = Prog1B.Stats.start(); // start time of the query, when stats are on
+            List<Object[]> retval = new LinkedList<>(Arrays.asList(db.getAll(match(prefix), printedFields(keyIndex))));
+            QUERY_LATENCY.recordSince(start);
+            return retval;
+        }
+
+        /**
+         * int query(String prefix, Consumer<RowView> action)
+         *
+         * Passes every entry in the DB whose key starts with the provided prefix to the action, in key order, as one
+         * view moved from entry to entry, so no row is decoded beyond what the action reads.
+         *
+         * @param prefix the query prefix
+         * @param action consumer of each entry; the view is only valid until it returns
+         * @return the number of entries
+         */
+        public int query(String prefix, Consumer<Prog1B.RowView> action) {
+            long start = Prog1B.Stats.start(); // start time of the query, when stats are on
+            int matches[] = match(prefix); // DB indices of matching entries
+            Prog1B.RowView view = db.newView(); // moved to each match
+            for (int index : matches) action.accept(db.getView(index, view));
+            QUERY_LATENCY.recordSince(start);
+            return matches.length;
+        }
+
+        /**
+         * match(prefix)
+         *
+         * Helper for the queries: the prefix is turned into the interval of keys [low, high) that start with it, and
+         * the buckets of the directory slots covering that interval are range scanned for it.
+         *
+         * @param prefix the query prefix
+         * @return the DB indices of the entries whose key starts with the prefix, in key order
+         */
+        private int[] match(String prefix) {
+            IntStream.Builder matches = IntStream.builder(); // DB indices of matching entries
 
             int matchLength = prefix.length(); // store length of prefix
-            Bucket thisBucket = null; // store bucket of query
             try {
-                if (matchLength > KEY_DIGITS) throw new NumberFormatException();
-                if (matchLength >= maxDepth) { // only one bucket to search, since prefix length is greater than hashcode digit length
-                    int hash = Integer.parseInt(prefix.substring(0, maxDepth)); // hash value of the prefix
-
-                    if (directory[hash] == null) return retval;
-                    thisBucket = hashBucketFile.getBucket(directory[hash]);
-
-                    Arrays.asList(thisBucket.getEntries()).forEach(entry -> {
-                        String keyStr = String.format("%0" + KEY_DIGITS + "d", entry.getKey()); // key integer to 6 char string
-
-                        if (keyStr.startsWith(prefix)) retval.add(db.get(entry.getIndex()));
-                    });
-                } else {
-                    Set<Integer> reported = new HashSet<>(); // maintain pointers to buckets already reported
-
-                    // search all buckets potentially with the given prefix, indices between values given by leftHash and rightHash
-                    String leftHashStr = prefix, rightHashStr = prefix;
-                    int leftHash, rightHash; // values represented by leftHashStr and rightHashStr, respectively
-
-
-                    while (leftHashStr.length() < maxDepth) leftHashStr += "0";
-                    leftHash = Integer.parseInt(leftHashStr);
-
-                    rightHash = Integer.parseInt(rightHashStr) + 1;
-                    rightHashStr = String.format("%0" + prefix.length() + "d", rightHash); // reattach leading 0's
-                    while (rightHashStr.length() < maxDepth) rightHashStr += "0";
-                    rightHash = Integer.parseInt(rightHashStr);
-
-                    // search over buckets
-                    for (int i = leftHash; i < rightHash; i++) {
-                        if (directory[i] == null) continue;
-                        else if (!reported.contains(directory[i])) { // ignore buckets already reported
-                            reported.add(directory[i]);
-                            thisBucket = hashBucketFile.getBucket(directory[i]);
-                            Arrays.asList(thisBucket.getEntries()).forEach(entry -> {
-                                String keyStr = String.format("%0" + KEY_DIGITS + "d", entry.getKey()); // key integer to 6 char string
-                                if (keyStr.startsWith(prefix)) retval.add(db.get(entry.getIndex()));
-                            });
-                        }
-                    }
+                if (matchLength == 0 || matchLength > keyDigits) throw new NumberFormatException();
+                int value = 0; // numeric value of the prefix
+                for (int i = 0; i < matchLength; i++) {
+                    int digit = Character.digit(prefix.charAt(i), keyCardinality);
+                    if (digit < 0) throw new NumberFormatException();
+                    value = value * keyCardinality + digit;
+                }
+                final int width = (int) pow(keyCardinality, keyDigits - matchLength); // keys sharing the prefix
+                final int low = value * width, high = low + width; // keys starting with the prefix
+                final int slotWidth = (int) pow(keyCardinality, keyDigits - maxDepth); // keys per directory slot
+
+                // a bucket's slots form one run, so visiting the runs over the interval scans each bucket once
+                final int lastSlot = (high - 1) / slotWidth; // last directory slot of the interval
+                for (int run = directory.findRun(low / slotWidth); run < directory.getNumRuns()
+                        && directory.getRunStart(run) <= lastSlot; run++) {
+                    if (directory.getRunBucket(run) != Directory.NO_BUCKET)
+                        hashBucketFile.scan(directory.getRunBucket(run), low, high, matches);
                 }
             } catch (NumberFormatException ex) {
-                System.out.println("Query must be a digit sequence of up to 6 characters.");
+                System.out.println("Query must be a digit sequence of up to " + keyDigits + " characters.");
             }
-            
-            return retval;
+
+            return matches.build().toArray();
+        }
+    }
+
+    /**
+     * IndexCatalog
+     *
+     * @author Bohan Li
+     *
+     * The set of indexes kept over one DB, each on a named integer column. Saved indexes are reopened and the rest
+     * are built together from a single scan of the DB. A query names its column and is answered by that column's
+     * index; a column without an index is answered by scanning the DB.
+     *
+     * Constructor:
+     * public IndexCatalog(BinaryFileDB db, File binFile)
+     *
+     * Methods:
+     * void add(String name, int keyIndex, int keyDigits, int keyCardinality)
+     * void addScanned(String name, int keyIndex, int keyDigits)
+     * void openOrBuild(boolean rebuild, boolean bulkLoad)
+     * Index getIndex(int keyIndex)
+     * Collection<Index> getIndexes()
+     * int getKeyIndex(String query)
+     * List<Object[]> query(String query)
+     * int query(String query, Consumer<RowView> action)
+     * private int[] match(int keyIndex, String prefix)
+     */
+    public static class IndexCatalog {
+        private final BinaryFileDB db; // DB the indexes are over
+        private final File binFile; // file the DB was opened from, for detecting stale saved indexes
+        private final Map<String, Integer> columns = new LinkedHashMap<>(); // column name -> field index
+        private final Map<Integer, int[]> specs = new LinkedHashMap<>(); // field index -> {key digits, key cardinality}
+        private final Map<Integer, Index> indexes = new LinkedHashMap<>(); // field index -> open index
+        private final Map<Integer, Integer> scannedDigits = new HashMap<>(); // field index -> key digits, if scanned
+
+        public IndexCatalog(BinaryFileDB db, File binFile) {
+            this.db = db;
+            this.binFile = binFile;
+        }
+
+        /**
+         * add
+         *
+         * Registers an index on an integer column; openOrBuild makes it available. The first column added is the
+         * one queries without a column name use.
+         *
+         * @param name column name used in queries
+         * @param keyIndex field of the column
+         * @param keyDigits digits of a key in the column
+         * @param keyCardinality radix of the key digits
+         */
+        public void add(String name, int keyIndex, int keyDigits, int keyCardinality) {
+            columns.put(name, keyIndex);
+            specs.put(keyIndex, new int[] {keyDigits, keyCardinality});
+        }
+
+        /**
+         * addScanned
+         *
+         * Registers an integer column that queries may name but that has no index, for columns queried too rarely
+         * to be worth one. Queries on it scan the DB, matching values zero-padded to keyDigits as an index would.
+         *
+         * @param name column name used in queries
+         * @param keyIndex field of the column
+         * @param keyDigits digits a value of the column is zero-padded to
+         */
+        public void addScanned(String name, int keyIndex, int keyDigits) {
+            columns.put(name, keyIndex);
+            scannedDigits.put(keyIndex, keyDigits);
+        }
+
+        /**
+         * openOrBuild
+         *
+         * Reopens every registered index that was saved for this version of the DB, then builds the others, all in
+         * one scan when bulk loading, and saves them.
+         *
+         * @param rebuild true to build every index even if a saved one is fresh
+         * @param bulkLoad false to build by inserting one row at a time, one index after another
+         */
+        public void openOrBuild(boolean rebuild, boolean bulkLoad) {
+            List<Index> built = new ArrayList<>(); // indexes that are built rather than reopened
+            for (Map.Entry<Integer, int[]> spec : specs.entrySet()) {
+                int keyIndex = spec.getKey(), keyDigits = spec.getValue()[0], keyCardinality = spec.getValue()[1];
+                Index index = rebuild || !bulkLoad ? null : Index.open(db, binFile, keyIndex, keyDigits, keyCardinality);
+                if (index == null) {
+                    if (bulkLoad) index = new Index(db, keyIndex, keyDigits, keyCardinality);
+                    else index = new Index(db, keyIndex, keyDigits, keyCardinality, false);
+                    built.add(index);
+                }
+                indexes.put(keyIndex, index);
+            }
+            if (bulkLoad && !built.isEmpty()) Index.bulkLoadAll(db, built);
+            built.forEach(index -> index.save(binFile));
+        }
+
+        /**
+         * @return the index on a field, or null if there is none
+         */
+        public Index getIndex(int keyIndex) {
+            return indexes.get(keyIndex);
+        }
+
+        public Collection<Index> getIndexes() {
+            return indexes.values();
+        }
+
+        /**
+         * @return the field a query of the form column=prefix or prefix matches, or -1 if the column is unknown
+         */
+        public int getKeyIndex(String query) {
+            int separator = query.indexOf('='); // end of the column name, if any
+            if (separator < 0) return columns.values().iterator().next();
+            return columns.getOrDefault(query.substring(0, separator), -1);
+        }
+
+        /**
+         * query
+         *
+         * Answers a query of the form column=prefix, or a bare prefix of the first column added, decoding the
+         * entries through the DB's row cache if it has one.
+         *
+         * @param query the query
+         * @return list of entries, represented as Object[]
+         */
+        public List<Object[]> query(String query) {
+            int matches[] = match(query); // DB indices of matching entries
+            int keyIndex = getKeyIndex(query); // field matched, decoded for printing
+            if (matches.length == 0) return new LinkedList<>();
+            return new LinkedList<>(Arrays.asList(db.getAll(matches, printedFields(keyIndex))));
+        }
+
+        /**
+         * query
+         *
+         * Answers a query like query(String), passing each entry to the action as a view instead of decoding it.
+         *
+         * @param query the query
+         * @param action consumer of each entry; the view is only valid until it returns
+         * @return the number of entries
+         */
+        public int query(String query, Consumer<Prog1B.RowView> action) {
+            int matches[] = match(query); // DB indices of matching entries
+            Prog1B.RowView view = db.newView(); // moved to each match
+            for (int index : matches) action.accept(db.getView(index, view));
+            return matches.length;
+        }
+
+        /**
+         * @return the DB indices of the entries matching a query of the form column=prefix or prefix, none if the
+         * column is unknown
+         */
+        private int[] match(String query) {
+            int keyIndex = getKeyIndex(query); // field of the named column
+            if (keyIndex < 0) {
+                System.out.println("Unknown column; queries are a prefix, or column=prefix with column one of "
+                        + columns.keySet());
+                return new int[0];
+            }
+            return match(keyIndex, query.substring(query.indexOf('=') + 1));
+        }
+
+        /**
+         * match
+         *
+         * Finds every entry whose value in a field starts with the prefix, through the field's index. A field
+         * without an index is scanned instead, matching the prefix against each value's decimal digits, zero-padded
+         * to the column's width; like an index, it rejects an empty prefix and one longer than that width.
+         *
+         * @param keyIndex field to match
+         * @param prefix the query prefix
+         * @return the DB indices of the matching entries
+         */
+        private int[] match(int keyIndex, String prefix) {
+            Index index = indexes.get(keyIndex);
+            if (index != null) return index.match(prefix);
+            int keyDigits = scannedDigits.get(keyIndex); // width values are padded to
+            boolean digitsOnly = !prefix.isEmpty() && prefix.length() <= keyDigits; // prefix is well formed
+            for (int i = 0; i < prefix.length(); i++) digitsOnly &= prefix.charAt(i) >= '0' && prefix.charAt(i) <= '9';
+            if (!digitsOnly) {
+                System.out.println("Query must be a digit sequence of up to " + keyDigits + " characters.");
+                return new int[0];
+            }
+
+            IntStream.Builder matches = IntStream.builder(); // DB indices of matching entries
+            db.scan(0, db.getNumEntries(), entry -> {
+                if (entry.isInt(keyIndex) && startsWith(entry.getInt(keyIndex), keyDigits, prefix))
+                    matches.add(entry.getIndex());
+            });
+            return matches.build().toArray();
+        }
+
+        /**
+         * @return true if the decimal digits of a non-negative value, zero-padded to keyDigits, start with the
+         * prefix, without formatting it; values wider than keyDigits never match, as an index leaves them out
+         */
+        private static boolean startsWith(int value, int keyDigits, String prefix) {
+            if (value < 0 || value >= pow(10, keyDigits)) return false;
+            for (int i = keyDigits; i > prefix.length(); i--) value /= 10; // keep the leading prefix.length() digits
+            for (int i = prefix.length() - 1; i >= 0; i--, value /= 10)
+                if (prefix.charAt(i) != (char) ('0' + value % 10)) return false;
+            return true;
+        }
+    }
+
+    /**
+     * Directory
+     *
+     * @author Bohan Li
+     *
+     * Run-length encoded directory of the extendable hashing structure. Directory slots are numbered 0 to
+     * numSlots - 1; every bucket covers a contiguous range of slots, so the directory stores one (first slot, bucket)
+     * pair per run of slots sharing a bucket, with NO_BUCKET for runs no key falls in. Memory and the cost of
+     * deepening the directory grow with the number of buckets rather than with cardinality^depth.
+     *
+     * Constants:
+     * NO_BUCKET - bucket id of slots without a bucket
+     *
+     * Constructor:
+     * public Directory(int numSlots) - directory with no buckets
+     * public Directory(int numSlots, int[] runStart, int[] runBucket) - directory with the given runs
+     *
+     * Methods:
+     * int get(int slot)
+     * void set(int from, int to, int bucket)
+     * void scale(int factor)
+     * int findRun(int slot)
+     * int getNumRuns(), int getRunStart(int run), int getRunBucket(int run), int getNumSlots()
+     */
+    public static class Directory {
+        public static final int NO_BUCKET = -1; // bucket id of slots without a bucket
+
+        private int numSlots; // number of slots
+        private int runStart[]; // first slot of each run, ascending; runStart[0] is 0
+        private int runBucket[]; // bucket of each run
+        private int numRuns; // runs in use
+
+        public Directory(int numSlots) {
+            this(numSlots, new int[] {0}, new int[] {NO_BUCKET});
+        }
+
+        public Directory(int numSlots, int[] runStart, int[] runBucket) {
+            this.numSlots = numSlots;
+            this.runStart = runStart;
+            this.runBucket = runBucket;
+            this.numRuns = runStart.length;
+        }
+
+        /**
+         * @return the bucket of a slot, or NO_BUCKET
+         */
+        public int get(int slot) {
+            if (slot < 0 || slot >= numSlots) throw new IndexOutOfBoundsException();
+            return runBucket[findRun(slot)];
+        }
+
+        /**
+         * @return the run holding a slot
+         */
+        public int findRun(int slot) {
+            int low = 0, high = numRuns; // binary search for the last run starting at or before slot
+            while (high - low > 1) {
+                int mid = (low + high) >>> 1;
+                if (runStart[mid] <= slot) low = mid;
+                else high = mid;
+            }
+            return low;
+        }
+
+        /**
+         * set
+         *
+         * Points the slots [from, to) at a bucket, replacing the runs they cover and merging the new run with equal
+         * neighbours.
+         *
+         * @param from first slot, inclusive
+         * @param to last slot, exclusive
+         * @param bucket bucket id, or NO_BUCKET
+         */
+        public void set(int from, int to, int bucket) {
+            if (from < 0 || to > numSlots || from >= to) throw new IndexOutOfBoundsException();
+            int first = findRun(from), last = findRun(to - 1); // runs overlapping [from, to)
+            int lastEnd = last + 1 < numRuns ? runStart[last + 1] : numSlots; // end of the last overlapping run
+
+            // runs replacing first..last: the part of the first before from, [from, to), the part of the last after to
+            int newStart[] = new int[3], newBucket[] = new int[3], numNew = 0;
+            if (runStart[first] < from) {
+                newStart[numNew] = runStart[first];
+                newBucket[numNew++] = runBucket[first];
+            }
+            newStart[numNew] = from;
+            newBucket[numNew++] = bucket;
+            if (to < lastEnd) {
+                newStart[numNew] = to;
+                newBucket[numNew++] = runBucket[last];
+            }
+
+            // merge with the runs on either side when they point at the same bucket
+            int replaceFrom = first, replaceTo = last + 1; // runs being replaced
+            int keepFrom = 0, keepTo = numNew; // new runs actually stored
+            if (replaceFrom > 0 && runBucket[replaceFrom - 1] == newBucket[0]) {
+                replaceFrom--;
+                newStart[0] = runStart[replaceFrom];
+            }
+            for (int i = keepTo - 1; i > keepFrom; i--) { // merge adjacent equal new runs
+                if (newBucket[i] == newBucket[i - 1]) {
+                    System.arraycopy(newStart, i + 1, newStart, i, keepTo - i - 1);
+                    System.arraycopy(newBucket, i + 1, newBucket, i, keepTo - i - 1);
+                    keepTo--;
+                }
+            }
+            if (replaceTo < numRuns && runBucket[replaceTo] == newBucket[keepTo - 1]) replaceTo++;
+
+            int newNumRuns = numRuns - (replaceTo - replaceFrom) + keepTo; // runs after the update
+            if (newNumRuns > runStart.length) {
+                runStart = Arrays.copyOf(runStart, Math.max(newNumRuns, 2 * runStart.length));
+                runBucket = Arrays.copyOf(runBucket, runStart.length);
+            }
+            System.arraycopy(runStart, replaceTo, runStart, replaceFrom + keepTo, numRuns - replaceTo);
+            System.arraycopy(runBucket, replaceTo, runBucket, replaceFrom + keepTo, numRuns - replaceTo);
+            System.arraycopy(newStart, 0, runStart, replaceFrom, keepTo);
+            System.arraycopy(newBucket, 0, runBucket, replaceFrom, keepTo);
+            numRuns = newNumRuns;
+        }
+
+        /**
+         * scale
+         *
+         * Makes every slot factor slots, keeping its bucket, as when the directory gains a digit of depth.
+         *
+         * @param factor number of new slots per old slot
+         */
+        public void scale(int factor) {
+            numSlots *= factor;
+            for (int i = 0; i < numRuns; i++) runStart[i] *= factor;
+        }
+
+        public int getNumSlots() {
+            return numSlots;
+        }
+
+        public int getNumRuns() {
+            return numRuns;
+        }
+
+        public int getRunStart(int run) {
+            return runStart[run];
+        }
+
+        public int getRunBucket(int run) {
+            return runBucket[run];
         }
     }
 
@@ -225,44 +1040,90 @@ public class Prog2 {
      * @author Bohan Li
      *
      * This class is the interface with the hash bucket file. Each bucket stores metadata and has space for all of
-     * its entries.
+     * its entries, kept sorted by key so lookups binary search a bucket and then scan a contiguous run of it. Buckets
+     * are read and written through a BufferPool with one bucket per frame, so inserts and splits
+     * work on buckets in memory and the file is only written when a dirty bucket is evicted or flushed.
+     *
+     * A bucket at full key depth holds a single key and cannot be split, so once full it is extended with overflow
+     * buckets chained through the next pointer in its metadata. Overflow buckets written in bulk directly follow
+     * their head, and scans read ahead through a chain of adjacent buckets.
      *
      * Constants:
      * FILE_NAME - file name of the hash bucket file
+     * POOL_FRAMES - number of buckets the buffer pool holds in memory
      *
      * Constructor:
      * public HashBucketFile() - initializes empty hash bucket file
+     * public HashBucketFile(String fileName) - initializes an empty hash bucket file with another name
+     * public HashBucketFile(String fileName, int numBuckets) - opens a hash bucket file that already holds
+     *     numBuckets buckets
      *
      * Methods:
      * int createBucket(int depth)
      * boolean addElementToBucket(int bucketIndex, BucketEntry entry)
+     * int writeBucket(int depth, long[] pairs, int from, int to)
+     * int replaceBucket(int bucketIndex, int depth, long[] pairs, int from, int to)
+     * void addOverflowElement(int bucketIndex, BucketEntry entry)
+     * int getDepth(int bucketIndex)
+     * void scan(int bucketIndex, int low, int high, IntStream.Builder matches)
+     * void flush()
+     * void truncate()
+     * int getNumBuckets()
+     * BufferPool getPool()
      * Bucket getBucket(int bucketIndex)
      * int getStartFileIndex(int hashBucketIndex)
      */
     public static class HashBucketFile {
         public static final String FILE_NAME = "hash_bucket_file.bin"; // file name for hash bucket file
+        public static int POOL_FRAMES = 256; // buckets held in memory by the buffer pool
 
         /*
             Metadata:
             4 bytes ------ integer number of elements in bucket
             4 bytes ------ integer depth of bucket
+            4 bytes ------ integer index of the next bucket in the overflow chain, NO_BUCKET if none
         */
-        private static final int BUCKET_METADATA_SIZE = 4 + 4; // size of metadata, bytes
+        private static final int BUCKET_METADATA_SIZE = 4 + 4 + 4; // size of metadata, bytes
+        private static final int NEXT_OFFSET = 8; // offset of the overflow pointer in a bucket
+        private static final int NO_BUCKET = -1; // overflow pointer of the last bucket in a chain
+        private static final int PREFETCH_BUCKETS = 8; // adjacent overflow buckets read at once by scan
+        // metrics, recorded only while Prog1B.Stats is enabled
+        private static final Prog1B.Stats.Counter BUCKETS_VISITED = Prog1B.Stats.counter("bucket.visited"); // by scan and getBucket
+        private static final Prog1B.Stats.Histogram GET_LATENCY = Prog1B.Stats.histogram("bucket.get");
+        private static final Prog1B.Stats.Histogram ADD_LATENCY = Prog1B.Stats.histogram("bucket.add");
         private static final int BUCKET_SIZE = BUCKET_METADATA_SIZE + Bucket.BUCKET_MAX_ENTRIES * BucketEntry.ENTRY_SIZE; // size of bucket in bytes
 
         private RandomAccessFile randomAccessFile; // file pointer for reading and writing
+        private BufferPool pool; // bucket frames cached in memory
         private int numBuckets; // number of buckets in the hash bucket file
 
         public HashBucketFile() {
+            this(FILE_NAME);
+        }
+
+        public HashBucketFile(String fileName) {
+            this(fileName, 0);
+        }
+
+        public HashBucketFile(String fileName, int numBuckets) {
             try {
-                randomAccessFile = new RandomAccessFile(new File(FILE_NAME), "rw");
+                randomAccessFile = new RandomAccessFile(new File(fileName), "rw");
             }
             catch (IOException ex) {
                 System.out.println("Error: Could not create RAF.");
                 System.exit(1);
             }
 
-            numBuckets = 0;
+            pool = new BufferPool(randomAccessFile, BUCKET_SIZE, POOL_FRAMES, numBuckets);
+            this.numBuckets = numBuckets;
+        }
+
+        public int getNumBuckets() {
+            return numBuckets;
+        }
+
+        public BufferPool getPool() {
+            return pool;
         }
 
         /**
@@ -278,24 +1139,21 @@ public class Prog2 {
          */
         public int createBucket(int depth) {
             int createdIndex = numBuckets++; // index of created bucket
-            int startingFileIndex = getStartFileIndex(createdIndex); // index into RAF
-            try {
-                randomAccessFile.seek(startingFileIndex);
-                randomAccessFile.writeInt(0); // write size of bucket
-                randomAccessFile.writeInt(depth);
-            } catch (IOException ex) {
-                System.out.println("Error: write failed. Out of space?");
-                System.exit(1);
-            }
+            ByteBuffer frame = pool.pinNew(createdIndex); // frame of the new bucket
+            frame.putInt(0, 0); // write size of bucket
+            frame.putInt(4, depth);
+            frame.putInt(NEXT_OFFSET, NO_BUCKET);
+            pool.unpin(createdIndex, true);
             return createdIndex;
         }
 
         /**
          * addElementToBucket
          *
-         * This method takes the bucket entry and writes it to the appropriate bucket in the hash bucket file.
+         * This method takes the bucket entry and writes it to the appropriate bucket in the hash bucket file, after
+         * every entry with a key at or below its own so the bucket stays sorted.
          * Pre-conditions: index must be valid into the file, otherwise IndexOutOfBoundsException is thrown
-         * Post-conditions: the entry is written to the file, unless the bucket is out of space
+         * Post-conditions: the entry is written to the bucket's frame, unless the bucket is out of space
          *
          * @throws IndexOutOfBoundsException
          * @param bucketIndex id of bucket, provided by createBucket
@@ -304,33 +1162,194 @@ public class Prog2 {
          */
         public boolean addElementToBucket(int bucketIndex, BucketEntry entry) {
             if (bucketIndex < 0 || bucketIndex >= numBuckets) throw new IndexOutOfBoundsException();
-            int startingFileIndex = getStartFileIndex(bucketIndex); // index into RAF
-            try {
-                randomAccessFile.seek(startingFileIndex);
-                int bucketSize = randomAccessFile.readInt(); // read size of bucket
-                if (bucketSize == Bucket.BUCKET_MAX_ENTRIES) return false; // no more space to be inserted
+            long start = Prog1B.Stats.start(); // start time of the add, when stats are on
+            ByteBuffer frame = pool.pin(bucketIndex); // frame holding the bucket
+            int bucketSize = frame.getInt(0); // read size of bucket
+            if (bucketSize == Bucket.BUCKET_MAX_ENTRIES) { // no more space to be inserted
+                pool.unpin(bucketIndex, false);
+                ADD_LATENCY.recordSince(start);
+                return false;
+            }
 
-                // go to position in RAF for entry to be inserted
-                randomAccessFile.seek(startingFileIndex + BUCKET_METADATA_SIZE + bucketSize * BucketEntry.ENTRY_SIZE);
+            // shift the entries with greater keys up one slot, write entry, then increment size
+            int position = upperBound(frame, bucketSize, entry.getKey()); // slot the entry goes in
+            int entryOffset = BUCKET_METADATA_SIZE + position * BucketEntry.ENTRY_SIZE; // offset of the new entry
+            System.arraycopy(frame.array(), entryOffset, frame.array(), entryOffset + BucketEntry.ENTRY_SIZE,
+                    (bucketSize - position) * BucketEntry.ENTRY_SIZE);
+            frame.putInt(entryOffset, entry.getKey());
+            frame.putInt(entryOffset + 4, entry.getIndex());
+            frame.putInt(0, bucketSize + 1);
+            pool.unpin(bucketIndex, true);
+            ADD_LATENCY.recordSince(start);
+            return true;
+        }
 
-                // write entry
-                randomAccessFile.writeInt(entry.getKey());
-                randomAccessFile.writeInt(entry.getIndex());
+        /**
+         * writeBucket
+         *
+         * This method appends a full bucket in one go, for building the index in bulk and for splits. More pairs
+         * than a bucket holds, which must all share one key, are written as the bucket followed by its overflow
+         * chain in adjacent buckets.
+         * Post-conditions: the bucket is stored after every bucket created so far
+         *
+         * @param depth depth of the bucket in the extendable hashing structure
+         * @param pairs (key, DB index) pairs packed as key << 32 | index, sorted
+         * @param from first pair of the bucket, inclusive
+         * @param to last pair of the bucket, exclusive
+         * @return the index of the bucket, for which the bucket can be retrieved by calling getBucket
+         */
+        public int writeBucket(int depth, long pairs[], int from, int to) {
+            int createdIndex = numBuckets; // index of created bucket
+            do {
+                int end = Math.min(to, from + Bucket.BUCKET_MAX_ENTRIES); // end of the pairs that fit in this bucket
+                int page = numBuckets++; // index of this bucket of the chain
+                fillBucket(pool.pinNew(page), depth, pairs, from, end, end < to ? page + 1 : NO_BUCKET);
+                pool.unpin(page, true);
+                from = end;
+            } while (from < to);
+            return createdIndex;
+        }
 
-                // increment size
-                randomAccessFile.seek(startingFileIndex);
-                randomAccessFile.writeInt(bucketSize + 1);
+        /**
+         * replaceBucket
+         *
+         * This method overwrites an existing bucket with new contents, as writeBucket would have written them.
+         *
+         * @throws IndexOutOfBoundsException
+         * @param bucketIndex id of bucket, provided by createBucket
+         * @return bucketIndex
+         */
+        public int replaceBucket(int bucketIndex, int depth, long pairs[], int from, int to) {
+            if (bucketIndex < 0 || bucketIndex >= numBuckets) throw new IndexOutOfBoundsException();
+            fillBucket(pool.pin(bucketIndex), depth, pairs, from, to, NO_BUCKET);
+            pool.unpin(bucketIndex, true);
+            return bucketIndex;
+        }
+
+        private void fillBucket(ByteBuffer frame, int depth, long pairs[], int from, int to, int next) {
+            frame.putInt(0, to - from);
+            frame.putInt(4, depth);
+            frame.putInt(NEXT_OFFSET, next);
+            for (int i = from; i < to; i++) // key then index, as addElementToBucket writes them
+                frame.putLong(BUCKET_METADATA_SIZE + (i - from) * BucketEntry.ENTRY_SIZE, pairs[i]);
+        }
+
+        /**
+         * addOverflowElement
+         *
+         * This method appends an entry to the last bucket of a full bucket's overflow chain, adding a bucket to the
+         * chain when the last one is full too.
+         * Pre-conditions: the bucket is at full key depth, so every entry of the chain has the same key
+         *
+         * @throws IndexOutOfBoundsException
+         * @param bucketIndex id of the first bucket of the chain
+         * @param entry entry to be written
+         */
+        public void addOverflowElement(int bucketIndex, BucketEntry entry) {
+            int last = bucketIndex; // last bucket of the chain
+            for (int next = getNext(last); next != NO_BUCKET; next = getNext(last)) last = next;
+            if (addElementToBucket(last, entry)) return;
+
+            int overflow = createBucket(getDepth(last)); // new last bucket
+            ByteBuffer frame = pool.pin(last);
+            frame.putInt(NEXT_OFFSET, overflow);
+            pool.unpin(last, true);
+            addElementToBucket(overflow, entry);
+        }
+
+        /**
+         * @return the depth stored in a bucket's metadata
+         */
+        public int getDepth(int bucketIndex) {
+            if (bucketIndex < 0 || bucketIndex >= numBuckets) throw new IndexOutOfBoundsException();
+            int depth = pool.pin(bucketIndex).getInt(4);
+            pool.unpin(bucketIndex, false);
+            return depth;
+        }
+
+        /**
+         * @return the next bucket of a bucket's overflow chain, or NO_BUCKET
+         */
+        private int getNext(int bucketIndex) {
+            if (bucketIndex < 0 || bucketIndex >= numBuckets) throw new IndexOutOfBoundsException();
+            int next = pool.pin(bucketIndex).getInt(NEXT_OFFSET);
+            pool.unpin(bucketIndex, false);
+            return next;
+        }
+
+        /**
+         * scan
+         *
+         * This method binary searches a bucket for the first key at or above low and adds the DB index of every
+         * entry from there with a key below high, reading the bucket's frame in place. The bucket's overflow chain
+         * is scanned as well; when the chain continues into an adjacent bucket that is not resident, the next few
+         * buckets are read ahead with one I/O.
+         *
+         * @throws IndexOutOfBoundsException
+         * @param bucketIndex id of bucket, provided by createBucket
+         * @param low smallest key to report, inclusive
+         * @param high largest key to report, exclusive
+         * @param matches receives the DB indices of the matching entries, in key order
+         */
+        public void scan(int bucketIndex, int low, int high, IntStream.Builder matches) {
+            if (bucketIndex < 0 || bucketIndex >= numBuckets) throw new IndexOutOfBoundsException();
+            for (int page = bucketIndex, next; page != NO_BUCKET; page = next) {
+                ByteBuffer frame = pool.pin(page); // frame holding this bucket of the chain
+                BUCKETS_VISITED.increment();
+                int bucketSize = frame.getInt(0);
+                next = frame.getInt(NEXT_OFFSET);
+                for (int i = upperBound(frame, bucketSize, low - 1); i < bucketSize; i++) {
+                    int entryOffset = BUCKET_METADATA_SIZE + i * BucketEntry.ENTRY_SIZE; // offset of the entry in the frame
+                    if (frame.getInt(entryOffset) >= high) break;
+                    matches.add(frame.getInt(entryOffset + 4));
+                }
+                pool.unpin(page, false);
+                if (next == page + 1) pool.prefetch(next, Math.min(PREFETCH_BUCKETS, numBuckets - next));
+            }
+        }
+
+        /**
+         * @return the first of a bucket frame's bucketSize sorted entries whose key is above key
+         */
+        private static int upperBound(ByteBuffer frame, int bucketSize, int key) {
+            int low = 0, high = bucketSize;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (frame.getInt(BUCKET_METADATA_SIZE + mid * BucketEntry.ENTRY_SIZE) <= key) low = mid + 1;
+                else high = mid;
+            }
+            return low;
+        }
+
+        /**
+         * flush
+         *
+         * Writes every modified bucket in the buffer pool back to the file.
+         */
+        public void flush() {
+            pool.flush();
+        }
+
+        /**
+         * truncate
+         *
+         * Writes back modified buckets and drops anything a previous run left in the file past the last bucket.
+         */
+        public void truncate() {
+            flush();
+            try {
+                randomAccessFile.setLength(getStartFileIndex(numBuckets));
             } catch (IOException ex) {
-                System.out.println("Error: file IO failed. Out of space?");
+                System.out.println("Error: file IO failed.");
                 System.exit(1);
             }
-            return true;
         }
 
         /**
          * getBucket
          *
-         * This method retrieves a bucket of the data written into the file memory.
+         * This method retrieves a bucket through the buffer pool, together with the entries of its overflow chain.
+         * Safe to call from several threads once the index is built.
          * Pre-conditions: index of bucket must be valid
          *
          * @throws IndexOutOfBoundsException
@@ -339,41 +1358,319 @@ public class Prog2 {
          */
         public Bucket getBucket(int bucketIndex) {
             if (bucketIndex < 0 || bucketIndex >= numBuckets) throw new IndexOutOfBoundsException();
-            int startingFileIndex = getStartFileIndex(bucketIndex); // index into RAF
-            if (bucketIndex < numBuckets && bucketIndex >= 0) {
+            long start = Prog1B.Stats.start(); // start time of the read, when stats are on
+            int bucketDepth = getDepth(bucketIndex);
+            int keys[] = new int[0], indices[] = new int[0]; // entries of the bucket and its chain
+            for (int page = bucketIndex, next; page != NO_BUCKET; page = next) {
+                ByteBuffer frame = pool.pin(page); // frame holding this bucket of the chain
+                BUCKETS_VISITED.increment();
+                int bucketSize = frame.getInt(0), numRead = keys.length;
+                next = frame.getInt(NEXT_OFFSET);
+                keys = Arrays.copyOf(keys, numRead + bucketSize);
+                indices = Arrays.copyOf(indices, numRead + bucketSize);
+
+                // read entries
+                for (int i = 0; i < bucketSize; i++) {
+                    int entryOffset = BUCKET_METADATA_SIZE + i * BucketEntry.ENTRY_SIZE; // offset of the entry in the frame
+                    keys[numRead + i] = frame.getInt(entryOffset);
+                    indices[numRead + i] = frame.getInt(entryOffset + 4);
+                }
+                pool.unpin(page, false);
+            }
+            GET_LATENCY.recordSince(start);
+            return new Bucket(bucketDepth, keys, indices); // bucket in memory
+        }
+
+        /**
+         * getStartFileIndex
+         *
+         * Helper function for file indexing math.
+         *
+         * @param hashBucketIndex bucket id indexing into the hash bucket
+         * @return the offset into the file, in bytes
+         */
+        private long getStartFileIndex(int hashBucketIndex) {
+            return (long) hashBucketIndex * BUCKET_SIZE;
+        }
+    }
+
+    /**
+     * BufferPool
+     *
+     * @author Bohan Li
+     *
+     * Fixed number of in-memory frames, each caching one fixed-size page of a file. A page is pinned while it is in
+     * use and cannot be evicted until it is unpinned; a page unpinned as dirty is written back when it is evicted or
+     * flushed. Victims are chosen with the clock algorithm: the hand sweeps the frames, skipping pinned ones and
+     * giving each recently used frame a second chance. All methods are synchronized, and a pinned frame stays valid
+     * outside the lock, so several threads can read pinned pages at once.
+     *
+     * Constructor:
+     * public BufferPool(RandomAccessFile file, int pageSize, int numFrames, int numPages)
+     *
+     * Methods:
+     * ByteBuffer pin(int page)
+     * ByteBuffer pinNew(int page)
+     * void prefetch(int firstPage, int numPages)
+     * void unpin(int page, boolean dirty)
+     * void flush()
+     * long getHits(), long getMisses(), long getEvictions(), long getWrites()
+     */
+    public static class BufferPool {
+        private final FileChannel channel; // channel of the file, used with positional reads and writes only
+        private final int pageSize; // bytes per page and per frame
+        private final ByteBuffer frames[]; // page contents
+        private final int framePage[]; // page held by each frame, -1 if empty
+        private final int pinCount[]; // users of each frame
+        private final boolean dirty[]; // frame differs from the file
+        private final boolean referenced[]; // frame used since the clock hand last passed it
+        private int pageFrame[]; // frame holding each page, -1 if not resident; grows as pages are added
+        private ByteBuffer run; // pages read together by prefetch, grown to the largest run read
+        private int clockHand; // next frame the clock considers
+        private long hits, misses, evictions, writes, prefetches; // statistics
+        // file I/O of every pool, recorded only while Prog1B.Stats is enabled
+        private static final Prog1B.Stats.Counter READS = Prog1B.Stats.counter("pool.reads");
+        private static final Prog1B.Stats.Counter BYTES_READ = Prog1B.Stats.counter("pool.bytesRead");
+        private static final Prog1B.Stats.Counter WRITES = Prog1B.Stats.counter("pool.writes");
+
+        /**
+         * @param file file holding the pages
+         * @param pageSize bytes per page
+         * @param numFrames pages held in memory at once
+         * @param numPages pages the file holds now, which sizes the page table
+         */
+        public BufferPool(RandomAccessFile file, int pageSize, int numFrames, int numPages) {
+            if (numFrames < 1) throw new IllegalArgumentException("buffer pool needs at least one frame");
+            this.channel = file.getChannel();
+            this.pageSize = pageSize;
+            frames = new ByteBuffer[numFrames];
+            framePage = new int[numFrames];
+            pinCount = new int[numFrames];
+            dirty = new boolean[numFrames];
+            referenced = new boolean[numFrames];
+            Arrays.fill(framePage, -1);
+            pageFrame = new int[Math.max(16, numPages)];
+            Arrays.fill(pageFrame, -1);
+        }
+
+        /**
+         * @return the frame holding a page, or -1 if the page is not resident
+         */
+        private int frameOf(int page) {
+            return page < pageFrame.length ? pageFrame[page] : -1;
+        }
+
+        /**
+         * Records which frame holds a page, growing the page table when the page is past its end.
+         */
+        private void setFrame(int page, int frame) {
+            if (page >= pageFrame.length) {
+                int oldLength = pageFrame.length;
+                pageFrame = Arrays.copyOf(pageFrame, Math.max(page + 1, oldLength * 2));
+                Arrays.fill(pageFrame, oldLength, pageFrame.length, -1);
+            }
+            pageFrame[page] = frame;
+        }
+
+        /**
+         * pin
+         *
+         * Makes a page resident, reading it from the file if needed, and pins it.
+         * Post-conditions: the frame is not evicted until unpin is called for the page
+         *
+         * @param page page number, from the start of the file
+         * @return the page's frame; use absolute gets and puts only, since the frame may be shared
+         */
+        public synchronized ByteBuffer pin(int page) {
+            return pin(page, true);
+        }
+
+        /**
+         * pinNew
+         *
+         * Pins a page that is being created, zero-filled instead of read from the file.
+         *
+         * @param page page number, from the start of the file
+         * @return the page's frame
+         */
+        public synchronized ByteBuffer pinNew(int page) {
+            return pin(page, false);
+        }
+
+        private ByteBuffer pin(int page, boolean read) {
+            int frame = frameOf(page); // frame already holding the page
+            if (frame != -1) {
+                hits++;
+            } else {
+                misses++;
+                frame = evict();
+                ByteBuffer buffer = frames[frame];
+                buffer.clear();
+                if (read) {
+                    READS.increment();
+                    BYTES_READ.add(pageSize);
+                }
                 try {
-                    randomAccessFile.seek(startingFileIndex);
-                    int bucketSize = randomAccessFile.readInt();
-                    int bucketDepth = randomAccessFile.readInt();
-                    Bucket bucket = new Bucket(bucketDepth, new BucketEntry[bucketSize]); // initialize bucket in memory
-
-                    // read entries
-                    for (int i = 0; i < bucketSize; i++) {
-                        // read entry
-                        int key = randomAccessFile.readInt();
-                        int index = randomAccessFile.readInt();
-
-                        bucket.getEntries()[i] = new BucketEntry(key, index);
+                    while (read && buffer.hasRemaining()) {
+                        if (channel.read(buffer, (long) page * pageSize + buffer.position()) < 0) break;
                     }
-                    return bucket;
                 } catch (IOException ex) {
                     System.out.println("Error: read failed.");
                     System.exit(1);
                 }
+                while (buffer.hasRemaining()) buffer.put((byte) 0); // past the end of the file
+                framePage[frame] = page;
+                setFrame(page, frame);
             }
-            return null;
+            pinCount[frame]++;
+            referenced[frame] = true;
+            return frames[frame];
         }
 
         /**
-         * getStartFileIndex
+         * prefetch
          *
-         * Helper function for file indexing math.
+         * If firstPage is not resident, loads it and the non-resident pages directly after it, up to numPages pages
+         * in all, with one read and without pinning them. The run is capped at the number of unpinned frames, and
+         * the frames it takes are held until the whole run is copied in, so a prefetch never evicts a page it
+         * loaded itself. Prefetched pages are not marked as recently used, so they are evicted first if never pinned.
          *
-         * @param hashBucketIndex bucket id indexing into the hash bucket
-         * @return the offset into the file, in bytes
+         * @param firstPage first page to load
+         * @param numPages most adjacent pages to load
          */
-        private int getStartFileIndex(int hashBucketIndex) {
-            return hashBucketIndex * BUCKET_SIZE;
+        public synchronized void prefetch(int firstPage, int numPages) {
+            if (frameOf(firstPage) != -1) return;
+            int available = 0; // frames the run may take
+            for (int frame = 0; frame < frames.length; frame++) if (pinCount[frame] == 0) available++;
+            int end = firstPage; // end of the run of pages not resident, read together
+            while (end < firstPage + Math.min(numPages, available) && frameOf(end) == -1) end++;
+            if (end == firstPage) return;
+
+            int runFrames[] = new int[end - firstPage]; // frame of each page of the run
+            for (int i = 0; i < runFrames.length; i++) {
+                runFrames[i] = evict();
+                pinCount[runFrames[i]]++; // held, so the next evict picks another frame
+            }
+            if (run == null || run.capacity() < runFrames.length * pageSize) run = ByteBuffer.allocate(runFrames.length * pageSize);
+            Arrays.fill(run.array(), 0, runFrames.length * pageSize, (byte) 0); // past the end of the file
+            run.clear().limit(runFrames.length * pageSize);
+            READS.increment();
+            BYTES_READ.add(run.limit());
+            try {
+                while (run.hasRemaining()) {
+                    if (channel.read(run, (long) firstPage * pageSize + run.position()) < 0) break;
+                }
+            } catch (IOException ex) {
+                System.out.println("Error: read failed.");
+                System.exit(1);
+            }
+            for (int i = 0; i < runFrames.length; i++) {
+                int frame = runFrames[i];
+                System.arraycopy(run.array(), i * pageSize, frames[frame].array(), 0, pageSize);
+                framePage[frame] = firstPage + i;
+                setFrame(firstPage + i, frame);
+                referenced[frame] = false;
+                pinCount[frame]--;
+                prefetches++;
+            }
+        }
+
+        /**
+         * evict
+         *
+         * Finds a frame for a new page with the clock algorithm, writing back its old page if dirty.
+         *
+         * @throws IllegalStateException if every frame is pinned
+         * @return the free frame
+         */
+        private int evict() {
+            for (int step = 0; step < 2 * frames.length; step++) {
+                int frame = clockHand;
+                clockHand = (clockHand + 1) % frames.length;
+                if (frames[frame] == null) {
+                    frames[frame] = ByteBuffer.allocate(pageSize);
+                    return frame;
+                }
+                if (pinCount[frame] > 0) continue;
+                if (referenced[frame]) { // second chance
+                    referenced[frame] = false;
+                    continue;
+                }
+                writeBack(frame);
+                if (framePage[frame] != -1) pageFrame[framePage[frame]] = -1;
+                framePage[frame] = -1;
+                evictions++;
+                return frame;
+            }
+            throw new IllegalStateException("Error: every buffer pool frame is pinned");
+        }
+
+        /**
+         * unpin
+         *
+         * Releases a page pinned by pin or pinNew.
+         *
+         * @param page page number
+         * @param dirty true if the caller modified the frame
+         */
+        public synchronized void unpin(int page, boolean dirty) {
+            int frame = frameOf(page);
+            if (frame == -1 || pinCount[frame] == 0) throw new IllegalStateException("Error: page " + page + " is not pinned");
+            pinCount[frame]--;
+            this.dirty[frame] |= dirty;
+        }
+
+        /**
+         * flush
+         *
+         * Writes every dirty frame back to the file, in page order.
+         */
+        public synchronized void flush() {
+            Integer dirtyFrames[] = new Integer[frames.length]; // frames to write
+            int numDirty = 0;
+            for (int frame = 0; frame < frames.length; frame++) if (dirty[frame]) dirtyFrames[numDirty++] = frame;
+            Arrays.sort(dirtyFrames, 0, numDirty, Comparator.comparingInt(frame -> framePage[frame]));
+            for (int i = 0; i < numDirty; i++) writeBack(dirtyFrames[i]);
+        }
+
+        private void writeBack(int frame) {
+            if (!dirty[frame]) return;
+            ByteBuffer buffer = frames[frame].duplicate(); // own position, so readers of the frame are unaffected
+            buffer.clear();
+            try {
+                while (buffer.hasRemaining())
+                    channel.write(buffer, (long) framePage[frame] * pageSize + buffer.position());
+            } catch (IOException ex) {
+                System.out.println("Error: write failed. Out of space?");
+                System.exit(1);
+            }
+            dirty[frame] = false;
+            writes++;
+            WRITES.increment();
+        }
+
+        public synchronized long getHits() {
+            return hits;
+        }
+
+        public synchronized long getMisses() {
+            return misses;
+        }
+
+        public synchronized long getEvictions() {
+            return evictions;
+        }
+
+        public synchronized long getWrites() {
+            return writes;
+        }
+
+        @Override
+        public synchronized String toString() {
+            long lookups = hits + misses; // pins served
+            return String.format("Buffer pool: %d frames, %d hits, %d misses (%.1f%% hit rate), %d evictions, %d writes, "
+                    + "%d prefetched", frames.length, hits, misses, lookups == 0 ? 0.0 : 100.0 * hits / lookups,
+                    evictions, writes, prefetches);
         }
     }
 
@@ -382,12 +1679,16 @@ public class Prog2 {
      *
      * @author Bohan Li
      *
-     * Storage class for bucket information in memory.
+     * Storage class for bucket information in memory. Entries are held as parallel primitive arrays of keys and DB
+     * indices, so they can be scanned without an object per entry.
      *
      * Constants:
      * BUCKET_MAX_ENTIRES - max number of elements in a bucket
      *
      * Methods:
+     * int size()
+     * int[] getKeys()
+     * int[] getIndices()
      * BucketEntry[] getEntries()
      * int getDepth()
      */
@@ -395,18 +1696,37 @@ public class Prog2 {
         public static int BUCKET_MAX_ENTRIES = 250; // max elements in a bucket
 
         private final int depth; // depth of bucket
-        private final BucketEntry[] entries; // entries in bucket
+        private final int[] keys; // key of each entry in bucket
+        private final int[] indices; // DB index of each entry in bucket
 
-        public Bucket(int depth, BucketEntry[] entries) {
+        public Bucket(int depth, int[] keys, int[] indices) {
             this.depth = depth;
-            this.entries = entries;
+            this.keys = keys;
+            this.indices = indices;
         }
 
         public int getDepth() {
             return depth;
         }
 
+        public int size() {
+            return keys.length;
+        }
+
+        public int[] getKeys() {
+            return keys;
+        }
+
+        public int[] getIndices() {
+            return indices;
+        }
+
+        /**
+         * @return the entries as objects, built on each call
+         */
         public BucketEntry[] getEntries() {
+            BucketEntry[] entries = new BucketEntry[keys.length];
+            for (int i = 0; i < keys.length; i++) entries[i] = new BucketEntry(keys[i], indices[i]);
             return entries;
         }
     }
@@ -446,74 +1766,19 @@ public class Prog2 {
     }
 
     /**
-     * Class representing the binary file as a DB, handles queries by index and by date. Depends on file produced from
-     * Prog1A.java.
+     * Class representing the binary file as a DB, handles queries by index. Shares its reader with Prog1B, including
+     * the memory-mapped read path. Depends on file produced from Prog1A.java.
      *
      * @name BinaryFileDB
      * @author Bohan Li
      */
-    public static class BinaryFileDB {
-        private RandomAccessFile file;          // file for accessing DB data
-        private long dataStart;                 // position in file for start point of DB data
-        private int numFields;                  // number of fields in the DB
-        private boolean fieldIsString[];        // boolean array for whether a field contains string data or not
-        private int maxFieldSize[];             // size for each field, in bytes
-        private int numEntries;                 // number of rows (entries) in the DB
-        private int entrySize;                  // size of each row (entry), in bytes
-
+    public static class BinaryFileDB extends Prog1B.BinaryFileDB {
         public BinaryFileDB(RandomAccessFile file) {
-            try {
-                this.file = file;
-                numFields = file.readInt();
-                numEntries = file.readInt();
-
-                fieldIsString = new boolean[numFields];
-                maxFieldSize = new int[numFields];
-                this.entrySize = 0;
-                for (int i = 0; i < numFields; i++) {
-                    fieldIsString[i] = file.readBoolean();
-                    maxFieldSize[i] = file.readInt();
-                    // max field sizes are not set for integers, so set them to 4 bytes
-                    entrySize += fieldIsString[i] ? maxFieldSize[i] : 4;
-                }
-
-                dataStart = file.getFilePointer();
-            } catch (IOException ex) {
-                System.out.println("Binary file could not be read or was corrupt");
-            }
+            super(file);
         }
 
-        /**
-         * Queries database by index of the entry. Moves RAF file pointer to the location after the read.
-         * @name get
-         * @param index
-         * @return the entry in the database
-         */
-        public Object[] get(int index) {
-            if (index < 0 || index >= numEntries) throw new IndexOutOfBoundsException();
-            try {
-                file.seek(dataStart + index*entrySize); // set RAF pointer to beginning of read position
-                Object[] retval = new Object[numFields]; // return value
-                for (int i = 0; i < numFields; i++) {
-                    if (fieldIsString[i]) {
-                        byte byteSeq[] = new byte[maxFieldSize[i]]; // read string as sequence of bytes into array
-                        file.readFully(byteSeq);
-                        retval[i] = new String(byteSeq);
-                    } else retval[i] = file.readInt();
-                }
-                return retval;
-            } catch (IOException ex) {
-                System.out.println("Could not properly read from the file.");
-                System.exit(1);
-            }
-            return null;
-        }
-
-        /**
-         * @return the number of entries in the database
-         */
-        public int getNumEntries() {
-            return numEntries;
+        public BinaryFileDB(RandomAccessFile file, boolean memoryMapped) {
+            super(file, memoryMapped);
         }
     }
 }
@@ -0,0 +1,159 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic SCDB data generator for scale testing
+ * @author Bohan Li
+ * Course: CSC 460
+ * Instructor: Lester McCann
+ *
+ * Usage java SCDBGenerator [--rows N] [--seed S] [--window W] [--bin] [source csv] [output csv]
+ *
+ * Writes a CSV of any number of rows that looks like the source CSV (SCDB2019.csv by default), for testing the
+ * programs at sizes the real data does not reach. The source is read once and kept in memory; the output is written
+ * one row at a time, so generating 100M rows takes no more memory than generating 100. The same seed always gives the
+ * same file. With --bin the CSV is then converted with Prog1A's bounded-memory converter and its fence sidecar is
+ * written, as Prog1A does.
+ *
+ * Output rows are sorted by dateDecision, so Prog1A keeps all of them. Row i of N takes the date at quantile
+ * (i + 0.5) / N of the source's decision dates, interpolated between neighbouring source rows, so the dates follow the
+ * source's distribution over time. Every other field is copied from a source row drawn at random from the W rows on
+ * either side of that quantile, independently per field. Each column therefore keeps the values, skew and string
+ * widths it had at that point in time, like the few issue codes that cover most cases, and the term and the justices
+ * stay consistent with the date, while whole rows are recombined rather than repeated. Other date fields keep the
+ * distance to the decision date they had in the row they were drawn from.
+ *
+ * System requirements: Java 8
+ */
+public class SCDBGenerator {
+    private static final int DATEDECISION_INDEX = 4; // field the output is sorted on
+
+    public static void main(String args[]) throws IOException {
+        String sourceFilename = "SCDB2019.csv"; // CSV the distributions are learned from
+        String outputFilename = null; // CSV to write
+        long numRows = 1000000; // rows to generate
+        long seed = 460; // seed of the generator
+        int window = 32; // source rows on either side of a row's position its fields are drawn from
+        boolean bin = false; // also convert the output to a .bin
+        List<String> filenames = new ArrayList<>(); // source and output, in that order
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--rows") && i + 1 < args.length) numRows = Long.parseLong(args[++i]);
+            else if (args[i].equals("--seed") && i + 1 < args.length) seed = Long.parseLong(args[++i]);
+            else if (args[i].equals("--window") && i + 1 < args.length) window = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--bin")) bin = true;
+            else filenames.add(args[i]);
+        }
+        if (filenames.size() > 0) sourceFilename = filenames.get(0);
+        if (filenames.size() > 1) outputFilename = filenames.get(1);
+        if (outputFilename == null) outputFilename = "SCDB_" + numRows + ".csv";
+        if (!new File(sourceFilename).exists() || numRows < 0 || window < 0 || numRows >= Integer.MAX_VALUE)
+            throw new RuntimeException("Usage java SCDBGenerator [--rows N] [--seed S] [--window W] [--bin] "
+                    + "[source csv] [output csv]");
+
+        long start = System.nanoTime();
+        Model model = new Model(sourceFilename);
+        model.generate(outputFilename, numRows, seed, window);
+        System.out.printf("Wrote %d rows to %s in %.1f s%n", numRows, outputFilename, (System.nanoTime() - start) / 1e9);
+
+        if (bin) {
+            String binFilename = outputFilename.substring(0, Math.max(0, outputFilename.lastIndexOf('.'))) + ".bin";
+            RandomAccessFile output = new RandomAccessFile(new File(binFilename), "rw");
+            output.setLength(0);
+            new Prog1A.StreamingConverter(outputFilename).outputToBin(output);
+            output.close();
+            Prog1B.FenceIndex.writeFor(binFilename);
+            System.out.printf("Converted to %s in %.1f s%n", binFilename, (System.nanoTime() - start) / 1e9);
+        }
+    }
+
+    /**
+     * The kept rows of the source CSV, in date order, with each field's type as Prog1A would store it.
+     */
+    public static class Model {
+        private final String header; // first record of the source, written unchanged
+        private final Prog1A.Schema schema; // types inferred from the source rows
+        private final List<String[]> rows = new ArrayList<>(); // fields of each kept source row, as written in the source
+        private final List<int[]> days = new ArrayList<>(); // epoch day of each date field of each kept row
+
+        /**
+         * Reads the source CSV, keeping the rows Prog1A.Data.keepRow keeps, as every converter does.
+         * @param sourceFilename CSV to learn from
+         */
+        public Model(String sourceFilename) throws IOException {
+            Prog1A.CsvTokenizer input = new Prog1A.CsvTokenizer(new FileReader(sourceFilename));
+            if (!input.next()) throw new IOException(sourceFilename + " is empty");
+            StringWriter headerText = new StringWriter(); // the header record as it appears in the source
+            input.writeRecord(headerText);
+            header = headerText.toString();
+            schema = Prog1A.Schema.fromHeader(input);
+            int previous = Integer.MIN_VALUE; // decision date of the last kept row
+            while (input.next()) {
+                if (!Prog1A.Data.keepRow(input, previous)) continue;
+                previous = input.getEpochDayField(DATEDECISION_INDEX);
+                schema.observe(input);
+                String fields[] = new String[schema.getNumFields()];
+                int rowDays[] = new int[schema.getNumFields()];
+                for (int i = 0; i < fields.length; i++) {
+                    fields[i] = i < input.getNumFields() ? input.getField(i) : "";
+                    rowDays[i] = i < input.getNumFields() ? input.getEpochDayField(i) : Prog1A.Schema.BLANK_DATE;
+                }
+                rows.add(fields);
+                days.add(rowDays);
+            }
+            input.close();
+            if (rows.isEmpty()) throw new IOException(sourceFilename + " has no rows with a decision date");
+        }
+
+        /**
+         * Writes a CSV of numRows rows drawn from the source, sorted by decision date.
+         * @param outputFilename CSV to write
+         * @param numRows rows to write
+         * @param seed seed of the random choices
+         * @param window source rows on either side of a row's position its fields are drawn from
+         */
+        public void generate(String outputFilename, long numRows, long seed, int window) throws IOException {
+            Random random = new Random(seed);
+            Writer output = new BufferedWriter(new FileWriter(outputFilename), 1 << 16);
+            output.write(header);
+            output.write('\n');
+            StringBuilder record = new StringBuilder(); // the row being written, as CSV text
+            final int numSource = rows.size(), numFields = schema.getNumFields();
+            for (long row = 0; row < numRows; row++) {
+                // the row's place among the source rows, which sets its decision date and the rows its fields come from
+                double position = Math.min(numSource - 1, Math.max(0, (row + 0.5) * numSource / numRows - 0.5));
+                int below = (int) position; // source row at or before the position
+                int above = Math.min(numSource - 1, below + 1); // source row after it
+                int lowDay = days.get(below)[DATEDECISION_INDEX], highDay = days.get(above)[DATEDECISION_INDEX];
+                int day = (int) Math.round(lowDay + (position - below) * (highDay - lowDay)); // decision date of the row
+
+                record.setLength(0);
+                for (int i = 0; i < numFields; i++) {
+                    if (i > 0) record.append(',');
+                    if (i == DATEDECISION_INDEX) {
+                        record.append(Prog1A.Schema.formatEpochDay(day));
+                        continue;
+                    }
+                    int source = Math.min(numSource - 1, Math.max(0, below + random.nextInt(2 * window + 1) - window));
+                    if (schema.getType(i) == Prog1A.Schema.TYPE_DATE) {
+                        int sourceDays[] = days.get(source); // date fields of the source row
+                        if (sourceDays[i] != Prog1A.Schema.BLANK_DATE)
+                            record.append(Prog1A.Schema.formatEpochDay(day + sourceDays[i] - sourceDays[DATEDECISION_INDEX]));
+                    }
+                    else record.append(rows.get(source)[i]);
+                }
+                record.append('\n');
+                output.append(record);
+            }
+            output.close();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+/**
+ * Runs every regression test
+ * @author Bohan Li
+ * Course: CSC 460
+ * Instructor: Lester McCann
+ *
+ * Usage: java AllTests [csv path]
+ * Runs the tests against the given CSV, SCDB2019.csv by default, prints a line per test, and exits with status 1 if
+ * any check failed. The tests write their files to the working directory, so run them from an empty scratch
+ * directory:
+ *     javac -d out/test src/*.java test/*.java
+ *     mkdir scratch && cd scratch && java -cp ../out/test AllTests ../src/SCDB2019.csv
+ *
+ * System requirements: Java 8
+ */
+public class AllTests {
+    public static void main(String args[]) throws Exception {
+        String csvFilename = args.length > 0 ? args[0] : "SCDB2019.csv"; // CSV every test starts from
+        ConverterTest.run(csvFilename);
+        LookupTest.run(csvFilename);
+        IndexTest.run(csvFilename);
+        AppendTest.run(csvFilename);
+        System.out.println(TestSupport.getChecks() + " checks, " + TestSupport.getFailures() + " failed");
+        if (TestSupport.getFailures() > 0) System.exit(1);
+    }
+}
@@ -0,0 +1,117 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Regression tests for Prog1A --append
+ * @author Bohan Li
+ * Course: CSC 460
+ * Instructor: Lester McCann
+ *
+ * Converting the first rows of a CSV sorted by date and appending the rest must give the same .bin and out.csv as
+ * converting the whole CSV at once, both when the new rows fit the file's fields and when a wider or 40,000-char value
+ * forces the file to be rewritten, and when some new rows have text after their date, which both must drop. The fence
+ * sidecar must be fresh afterwards. A row whose value the file cannot store must abort the append before the .bin, its
+ * sidecar or out.csv change.
+ *
+ * System requirements: Java 8
+ */
+public class AppendTest {
+    private static final int DECISIONTYPE_INDEX = 5; // an int field, given text by the rows that cannot be stored
+
+    public static void run(String csvFilename) throws Exception {
+        List<String> lines = TestSupport.sortByDate(TestSupport.readLines(csvFilename)); // header, then every row
+
+        TestSupport.test("appending rows that fit matches a full conversion", () ->
+                checkAppend(lines, lines.size() - 10, false));
+
+        TestSupport.test("appending drops the rows a full conversion drops", () -> {
+            List<String> malformed = new ArrayList<>(lines); // the CSV with text after some of its last dates
+            for (int i = lines.size() - 9; i < lines.size(); i += 3)
+                malformed.set(i, TestSupport.withMalformedDate(lines.get(i), i));
+            checkAppend(malformed, lines.size() - 10, false);
+        });
+
+        TestSupport.test("appending wider rows rewrites the file and matches a full conversion", () ->
+                checkAppend(lines, lines.size() / 2, true));
+
+        TestSupport.test("appending a 40000-char field rewrites the file and matches a full conversion", () -> {
+            List<String> longLines = new ArrayList<>(lines); // the CSV with one long caseId near its end
+            longLines.set(lines.size() - 5, TestSupport.withLongField(lines.get(lines.size() - 5), 0, 40000));
+            checkAppend(longLines, lines.size() - 10, true);
+        });
+
+        TestSupport.test("appending a value the file cannot store changes nothing", () -> {
+            TestSupport.writeLines("head.csv", lines.subList(0, lines.size() - 10));
+            TestSupport.convert("head.csv", "head.bin");
+            List<String> bad = new ArrayList<>(); // the last rows, with text in an int field
+            bad.add(lines.get(0));
+            for (String line : lines.subList(lines.size() - 10, lines.size()))
+                bad.add(TestSupport.withField(line, DECISIONTYPE_INDEX, "x"));
+            TestSupport.writeLines("bad.csv", bad);
+            for (String filename : new String[] {"head.bin", Prog1B.FenceIndex.getSidecarName("head.bin"), "out.csv"})
+                Files.copy(Paths.get(filename), Paths.get(filename + ".before"), StandardCopyOption.REPLACE_EXISTING);
+
+            boolean aborted = false; // whether append refused the rows
+            try {
+                new Prog1A.Appender("head.bin").append("bad.csv");
+            } catch (IOException ex) {
+                aborted = true;
+            }
+            TestSupport.check(aborted, "append of an unstorable value did not fail");
+            for (String filename : new String[] {"head.bin", Prog1B.FenceIndex.getSidecarName("head.bin"), "out.csv"})
+                TestSupport.checkSameFile(filename + ".before", filename);
+            TestSupport.check(!new File("head.bin.tmp").exists(), "rewrite left its temporary file");
+        });
+    }
+
+    /**
+     * Converts the CSV's first rows, appends the others the way Prog1A --append does, and checks the .bin, out.csv
+     * and fence sidecar against a conversion of the whole CSV.
+     * @param lines the CSV's header and rows
+     * @param split first row appended rather than converted
+     * @param rewrite whether the appended rows need wider fields than the first rows
+     */
+    private static void checkAppend(List<String> lines, int split, boolean rewrite) throws IOException {
+        TestSupport.writeLines("whole.csv", lines);
+        TestSupport.convert("whole.csv", "whole.bin");
+        Files.copy(Paths.get("out.csv"), Paths.get("whole.out.csv"), StandardCopyOption.REPLACE_EXISTING);
+
+        TestSupport.writeLines("head.csv", lines.subList(0, split));
+        List<String> tail = new ArrayList<>(lines.subList(split, lines.size())); // appended rows, under the header
+        tail.add(0, lines.get(0));
+        TestSupport.writeLines("tail.csv", tail);
+        TestSupport.convert("head.csv", "head.bin");
+
+        Prog1A.Appender appender = new Prog1A.Appender("head.bin");
+        int oldNumEntries = appender.getNumEntries(); // rows before the append
+        long oldLength = new File("head.bin").length(), oldModified = new File("head.bin").lastModified();
+        TestSupport.checkEquals(new Prog1A.Appender("whole.bin").getNumEntries() - oldNumEntries,
+                appender.append("tail.csv"), "rows appended");
+        TestSupport.checkEquals(rewrite, appender.isRewritten(), "file rewritten");
+        if (appender.isRewritten()) Prog1B.FenceIndex.writeFor("head.bin");
+        else Prog1B.FenceIndex.appendFor("head.bin", oldNumEntries, oldLength, oldModified);
+
+        TestSupport.checkSameFile("whole.bin", "head.bin");
+        TestSupport.checkSameFile("whole.out.csv", "out.csv");
+        RandomAccessFile file = new RandomAccessFile(new File("head.bin"), "r"); // the appended file
+        RandomAccessFile wholeFile = new RandomAccessFile(new File("whole.bin"), "r"); // the whole CSV converted
+        Prog1B.BinaryFileDB db = new Prog1B.BinaryFileDB(file), whole = new Prog1B.BinaryFileDB(wholeFile);
+        db.loadFences("head.bin");
+        whole.loadFences("whole.bin");
+        TestSupport.check(db.getFences() != null, "fence sidecar is stale after the append");
+        if (db.getFences() != null) TestSupport.checkEquals(whole.getFences().size(), db.getFences().size(), "fences");
+        for (int i = 0; i < db.getNumEntries(); i += 97) {
+            int day = db.getDecisionDay(i); // searched through both sidecars
+            TestSupport.checkEquals(whole.lowerBound(day, 0, whole.getNumEntries()),
+                    db.lowerBound(day, 0, db.getNumEntries()), "first row of day " + day);
+        }
+        file.close();
+        wholeFile.close();
+    }
+}
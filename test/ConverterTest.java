@@ -0,0 +1,250 @@
+import java.io.File;
+import java.io.FileReader;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Regression tests for Prog1A's converters
+ * @author Bohan Li
+ * Course: CSC 460
+ * Instructor: Lester McCann
+ *
+ * The streaming and parallel converters must write the same .bin and out.csv as the in-memory Data converter, for the
+ * source CSV and for a CSV with out-of-order rows and line breaks inside quotes, including quoted values longer than a
+ * chunk, and for fields of 40,000 and 70,000 chars. Chunk sizes down to 100 bytes make the parallel converter cut the
+ * file at almost every record. Data's columns must hold the kept rows' values, and the column-major layout must decode
+ * to the same rows as the row-major one, whole or projected. The tokenizer must split records at commas and line breaks
+ * outside quotes only, and read ints as Integer.parseInt does. Every converter and the generator must drop a row whose
+ * date has text after it, as if the row were not in the CSV. A CSV generated twice with one seed must be the same
+ * file, and every row of it must be kept by every converter.
+ *
+ * System requirements: Java 8
+ */
+public class ConverterTest {
+    private static final long CHUNK_SIZES[] = {100, 1 << 16, Prog1A.ParallelConverter.DEFAULT_CHUNK_SIZE}; // parallel chunk sizes tried
+
+    private static final int CASENAME_INDEX = 14; // quoted string field given line breaks
+    private static final long GENERATED_ROWS = 20000; // rows of the synthetic CSV, more than the source holds
+
+    public static void run(String csvFilename) throws Exception {
+        TestSupport.test("converters write identical output for the source CSV", () -> checkConverters(csvFilename));
+
+        TestSupport.test("converters write identical output for out-of-order rows and quoted line breaks", () -> {
+            List<String> lines = TestSupport.readLines(csvFilename); // header, then one row per line
+            Random random = new Random(460);
+            for (int i = 1; i < lines.size(); i += 97) { // move rows out of date order
+                int other = 1 + random.nextInt(lines.size() - 1); // row swapped with row i
+                String line = lines.get(i);
+                lines.set(i, lines.get(other));
+                lines.set(other, line);
+            }
+            lines.set(500, lines.get(500).replaceFirst("\"", "\"a\nb,\"\"c"));
+            TestSupport.writeLines("shuffled.csv", lines);
+            checkConverters("shuffled.csv");
+        });
+
+        TestSupport.test("converters write identical output for quoted line breaks spanning chunks", () -> {
+            List<String> lines = TestSupport.readLines(csvFilename).subList(0, 300);
+            String pieces[] = {"\n", "\"\"x, ", "\r\nline "}; // line breaks, quotes and commas, escaped as in a CSV
+            for (int i = 1; i < lines.size(); i += 7) {
+                StringBuilder value = new StringBuilder("\""); // quoted caseName, up to about two chunks long
+                for (int j = 0; j < i % 40; j++) value.append(pieces[j % pieces.length]);
+                lines.set(i, TestSupport.withField(lines.get(i), CASENAME_INDEX, value.append('"').toString()));
+            }
+            TestSupport.writeLines("multiline.csv", lines);
+            checkConverters("multiline.csv");
+        });
+
+        for (int length : new int[] {40000, 70000}) {
+            TestSupport.test("converters write identical output for a " + length + "-char field", () -> {
+                List<String> lines = TestSupport.readLines(csvFilename).subList(0, 200);
+                lines.set(50, TestSupport.withLongField(lines.get(50), 0, length));
+                TestSupport.writeLines("long.csv", lines);
+                checkConverters("long.csv");
+                RandomAccessFile file = new RandomAccessFile(new File("long.csv.data.bin"), "r");
+                Prog1B.BinaryFileDB db = new Prog1B.BinaryFileDB(file);
+                int longest = 0; // longest caseId decoded, quotes and padding included
+                for (int i = 0; i < db.getNumEntries(); i++) longest = Math.max(longest, ((String) db.get(i)[0]).length());
+                TestSupport.checkEquals(length + 2, longest, "width of the long field");
+                file.close();
+            });
+        }
+
+        TestSupport.test("converters and the generator drop rows whose date is not a whole M/d/yyyy date", () -> {
+            List<String> lines = TestSupport.readLines(csvFilename).subList(0, 2000);
+            List<String> malformed = new ArrayList<>(lines), wellFormed = new ArrayList<>(); // with and without them
+            for (int i = 0; i < lines.size(); i++) {
+                if (i > 0 && i % 13 == 0) malformed.set(i, TestSupport.withMalformedDate(lines.get(i), i));
+                else wellFormed.add(lines.get(i));
+            }
+            TestSupport.writeLines("malformed.csv", malformed);
+            TestSupport.writeLines("wellformed.csv", wellFormed);
+            checkConverters("malformed.csv");
+            checkConverters("wellformed.csv");
+            TestSupport.checkSameFile("wellformed.csv.data.bin", "malformed.csv.data.bin");
+            TestSupport.checkSameFile("wellformed.csv.data.out.csv", "malformed.csv.data.out.csv");
+
+            new SCDBGenerator.Model("malformed.csv").generate("generated.malformed.csv", 1000, 460, 32);
+            new SCDBGenerator.Model("wellformed.csv").generate("generated.wellformed.csv", 1000, 460, 32);
+            TestSupport.checkSameFile("generated.wellformed.csv", "generated.malformed.csv");
+        });
+
+        TestSupport.test("Data columns hold the values of the kept rows", () -> {
+            Prog1A.Data data = new Prog1A.Data(csvFilename); // also writes the kept rows to out.csv
+            Prog1A.CsvTokenizer kept = new Prog1A.CsvTokenizer(new FileReader("out.csv"));
+            int row = 0, mismatched = 0; // rows read back, values that differ
+            while (kept.next()) {
+                for (int field = 0; field < kept.getNumFields(); field++) {
+                    Object expected, actual; // value in out.csv, value in the column
+                    if (data.getSchema().getType(field) == Prog1A.Schema.TYPE_STRING) {
+                        expected = ascii(kept.getField(field));
+                        actual = ascii(data.getString(row, field));
+                    } else {
+                        expected = data.getSchema().getType(field) == Prog1A.Schema.TYPE_INT ? kept.getIntField(field, -1)
+                                : kept.getField(field).isEmpty() ? Prog1A.Schema.BLANK_DATE
+                                : Prog1A.Schema.toEpochDay(Prog1A.Data.DATE_FORMAT.parse(kept.getField(field)));
+                        actual = data.getInt(row, field);
+                    }
+                    if (!expected.equals(actual)) mismatched++;
+                }
+                row++;
+            }
+            kept.close();
+            TestSupport.checkEquals(data.getNumEntries(), row, "rows kept");
+            TestSupport.checkEquals(0, mismatched, "values that differ");
+        });
+
+        TestSupport.test("tokenizer splits records only outside quotes", () -> {
+            Prog1A.CsvTokenizer tokenizer = new Prog1A.CsvTokenizer(new StringReader(
+                    "a,\"b,c\",\"d\"\"e\",,\"f\r\ng\"\r\n12,-3\n\nlast"));
+            TestSupport.checkEquals(true, tokenizer.next(), "first record read");
+            TestSupport.checkEquals(Arrays.asList("a", "\"b,c\"", "\"d\"\"e\"", "", "\"f\r\ng\""), fields(tokenizer),
+                    "first record");
+            TestSupport.checkEquals(true, tokenizer.next(), "second record read");
+            TestSupport.checkEquals(Arrays.asList("12", "-3"), fields(tokenizer), "second record");
+            TestSupport.checkEquals(true, tokenizer.next(), "empty record read");
+            TestSupport.checkEquals(Arrays.asList(""), fields(tokenizer), "empty record");
+            TestSupport.checkEquals(true, tokenizer.next(), "unterminated last record read");
+            TestSupport.checkEquals(Arrays.asList("last"), fields(tokenizer), "last record");
+            TestSupport.checkEquals(false, tokenizer.next(), "record read past the end");
+        });
+
+        TestSupport.test("tokenizer parses ints like Integer.parseInt", () -> {
+            String texts[] = {"0", "-0", "+5", "007", "-2147483648", "2147483647", "2147483648", "-2147483649",
+                    "99999999999", "", "-", "+", "12a", " 1", "1.0"}; // fields of one record
+            Prog1A.CsvTokenizer tokenizer = new Prog1A.CsvTokenizer(new StringReader(String.join(",", texts)));
+            tokenizer.next();
+            for (int i = 0; i < texts.length; i++) {
+                Integer expected; // what Integer.parseInt makes of the text, null if it rejects it
+                try {
+                    expected = Integer.parseInt(texts[i]);
+                } catch (NumberFormatException ex) {
+                    expected = null;
+                }
+                TestSupport.checkEquals(expected != null, tokenizer.isIntField(i), "isIntField of \"" + texts[i] + "\"");
+                TestSupport.checkEquals(expected == null ? -1 : expected, tokenizer.getIntField(i, -1),
+                        "getIntField of \"" + texts[i] + "\"");
+                char chars[] = ("9" + texts[i] + "9").toCharArray(); // the text between digits parseInt must not read
+                TestSupport.checkEquals(expected == null ? Prog1A.CsvTokenizer.NOT_AN_INT : (long) expected,
+                        Prog1A.CsvTokenizer.parseInt(chars, 1, chars.length - 1), "parseInt of \"" + texts[i] + "\"");
+            }
+        });
+
+        TestSupport.test("column-major bin decodes to the same rows as the row-major bin", () -> {
+            TestSupport.convert(csvFilename, "rows.bin");
+            RandomAccessFile output = TestSupport.open("columns.bin");
+            new Prog1A.Data(csvFilename).outputToColumnarBin(output);
+            output.close();
+            RandomAccessFile rowFile = new RandomAccessFile(new File("rows.bin"), "r");
+            RandomAccessFile columnFile = new RandomAccessFile(new File("columns.bin"), "r");
+            Prog1B.BinaryFileDB rows = new Prog1B.BinaryFileDB(rowFile), columns = new Prog1B.BinaryFileDB(columnFile);
+            TestSupport.checkEquals(rows.getNumEntries(), columns.getNumEntries(), "row count");
+            int projection[] = {0, 4, 14, 39}; // fields decoded by the projected reads
+            int mismatched = 0, projectedMismatched = 0; // whole and projected rows decoded differently
+            for (int i = 0; i < rows.getNumEntries(); i++) {
+                Object[] row = rows.get(i); // the row-major file's row, as the reference
+                if (!Arrays.equals(row, columns.get(i))) mismatched++;
+                if (!Arrays.equals(project(row, projection), rows.get(i, projection))) projectedMismatched++;
+                if (!Arrays.equals(project(row, projection), columns.get(i, projection))) projectedMismatched++;
+            }
+            TestSupport.checkEquals(0, mismatched, "rows that differ");
+            TestSupport.checkEquals(0, projectedMismatched, "projected rows that differ");
+            rowFile.close();
+            columnFile.close();
+        });
+
+        TestSupport.test("generated CSV is reproducible and keeps every row", () -> {
+            SCDBGenerator.Model model = new SCDBGenerator.Model(csvFilename);
+            model.generate("generated.csv", GENERATED_ROWS, 460, 32);
+            model.generate("generated.again.csv", GENERATED_ROWS, 460, 32);
+            TestSupport.checkSameFile("generated.csv", "generated.again.csv");
+            TestSupport.convert("generated.csv", "generated.bin");
+            RandomAccessFile file = new RandomAccessFile(new File("generated.bin"), "r");
+            TestSupport.checkEquals(GENERATED_ROWS, (long) new Prog1B.BinaryFileDB(file).getNumEntries(), "rows kept");
+            file.close();
+            checkConverters("generated.csv");
+        });
+    }
+
+    /**
+     * @return the row with null in place of every field not in the projection
+     */
+    private static Object[] project(Object[] row, int fields[]) {
+        Object[] projected = new Object[row.length]; // the requested fields of row
+        for (int field : fields) projected[field] = row[field];
+        return projected;
+    }
+
+    /**
+     * @return the text with every non-ASCII char replaced by '?', since the converters read the CSV in the platform's
+     * charset and store one byte per char
+     */
+    private static String ascii(String text) {
+        StringBuilder result = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) result.append(text.charAt(i) < 128 ? text.charAt(i) : '?');
+        return result.toString();
+    }
+
+    /**
+     * @return the fields of the tokenizer's current record
+     */
+    private static List<String> fields(Prog1A.CsvTokenizer tokenizer) {
+        List<String> fields = new ArrayList<>(); // fields in record order
+        for (int i = 0; i < tokenizer.getNumFields(); i++) fields.add(tokenizer.getField(i));
+        return fields;
+    }
+
+    /**
+     * Converts the CSV with Data, then with StreamingConverter and with ParallelConverter at every chunk size, and
+     * checks each .bin and out.csv against Data's. Every file is written to the working directory.
+     */
+    private static void checkConverters(String csvFilename) throws Exception {
+        String baseName = new File(csvFilename).getName(); // prefix of the files written
+        String dataBin = baseName + ".data.bin", dataCsv = baseName + ".data.out.csv"; // Data's output
+        RandomAccessFile output = TestSupport.open(dataBin);
+        new Prog1A.Data(csvFilename).outputToBin(output);
+        output.close();
+        Files.copy(Paths.get("out.csv"), Paths.get(dataCsv), StandardCopyOption.REPLACE_EXISTING);
+
+        output = TestSupport.open(baseName + ".stream.bin");
+        new Prog1A.StreamingConverter(csvFilename).outputToBin(output);
+        output.close();
+        TestSupport.checkSameFile(dataBin, baseName + ".stream.bin");
+        TestSupport.checkSameFile(dataCsv, "out.csv");
+
+        for (long chunkSize : CHUNK_SIZES) {
+            output = TestSupport.open(baseName + ".parallel.bin");
+            new Prog1A.ParallelConverter(csvFilename, chunkSize).outputToBin(output);
+            output.close();
+            TestSupport.checkSameFile(dataBin, baseName + ".parallel.bin");
+            TestSupport.checkSameFile(dataCsv, "out.csv");
+        }
+    }
+}
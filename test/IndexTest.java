@@ -0,0 +1,392 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Regression tests for Prog2's index
+ * @author Bohan Li
+ * Course: CSC 460
+ * Instructor: Lester McCann
+ *
+ * Every query must return exactly the rows a scan of every row finds, for the issue column and each column the catalog
+ * indexes or scans, returned as rows or as views, whether the index was bulk loaded, built by inserting one row at a
+ * time, built through a buffer pool of any size, or reopened from the files a previous run saved, and every bucket must
+ * keep its keys sorted. A key held by more rows than a bucket holds must still find every one of them, reading its
+ * overflow chain with no more I/Os than buckets, and the run-length directory must map every slot as a plain slot array
+ * would. A buffer pool must read back every page as written, however many pages the file grows to. A saved index must
+ * catch up with rows appended to the .bin, and must not be reopened once the .bin changes otherwise. A prefix that is
+ * not 1 to 6 digits, or a scanned column's prefix that is not 1 to that column's digits, must match nothing. Prog2
+ * must print each entry with its value in the queried column.
+ *
+ * System requirements: Java 8
+ */
+public class IndexTest {
+    private static final String BIN_FILE_NAME = "index.bin"; // DB the index is built over
+    private static final int PREFIX_STRIDE = 701; // every this many rows, prefixes of the row's key are queried
+    private static final String ONE_KEY = "010010"; // key given to every row to overflow its bucket
+    // columns the catalog indexes, as Prog2 registers them
+    private static final String COLUMNS[] = {"issue", "term", "petitioner", "lawType", "majOpinWriter"};
+    private static final int COLUMN_FIELDS[] = {Prog2.Index.KEY_INDEX, Prog2.TERM_INDEX, Prog2.PETITIONER_INDEX,
+            Prog2.LAWTYPE_INDEX, Prog2.MAJOPINWRITER_INDEX};
+    private static final int COLUMN_DIGITS[] = {Prog2.Index.KEY_DIGITS, 4, 3, 1, 3};
+    private static final Prog1B.Stats.Counter POOL_READS = Prog1B.Stats.counter("pool.reads"); // buffer pool I/Os
+    private static final Prog1B.Stats.Counter BUCKETS_VISITED = Prog1B.Stats.counter("bucket.visited");
+    private static final int POOL_FRAMES[] = {1, 4}; // buffer pools small enough to evict during every build
+
+    public static void run(String csvFilename) throws Exception {
+        TestSupport.convert(csvFilename, BIN_FILE_NAME);
+
+        for (boolean bulkLoad : new boolean[] {true, false}) {
+            TestSupport.test((bulkLoad ? "bulk loaded" : "row-by-row built") + " index queries match a scan", () -> {
+                RandomAccessFile file = new RandomAccessFile(new File(BIN_FILE_NAME), "r");
+                Prog2.BinaryFileDB db = new Prog2.BinaryFileDB(file, true);
+                Prog2.Index index = new Prog2.Index(db, bulkLoad);
+                checkQueries(db, index);
+                checkBucketsSorted(index);
+                file.close();
+            });
+        }
+
+        for (boolean bulkLoad : new boolean[] {true, false}) {
+            TestSupport.test("catalog queries of every indexed column match a scan"
+                    + (bulkLoad ? "" : ", row-by-row built"), () -> {
+                RandomAccessFile file = new RandomAccessFile(new File(BIN_FILE_NAME), "r");
+                Prog2.BinaryFileDB db = new Prog2.BinaryFileDB(file, true);
+                Prog2.IndexCatalog catalog = new Prog2.IndexCatalog(db, new File(BIN_FILE_NAME));
+                for (int c = 0; c < COLUMNS.length; c++) catalog.add(COLUMNS[c], COLUMN_FIELDS[c], COLUMN_DIGITS[c], 10);
+                catalog.openOrBuild(true, bulkLoad);
+                for (int c = 0; c < COLUMNS.length; c++) {
+                    String column = COLUMNS[c]; // name the query uses
+                    checkQueries(db, COLUMN_FIELDS[c], COLUMN_DIGITS[c], prefix -> catalog.query(column + "=" + prefix));
+                }
+                checkQueries(db, Prog2.Index.KEY_INDEX, Prog2.Index.KEY_DIGITS, catalog::query);
+                checkQueries(db, Prog2.Index.KEY_INDEX, Prog2.Index.KEY_DIGITS, prefix -> {
+                    List<Object[]> rows = new ArrayList<>(); // rows the views point at
+                    catalog.query(prefix, view -> rows.add(db.get(view.getIndex(), Prog2.PRINTED_FIELDS)));
+                    return rows;
+                });
+                catalog.addScanned("naturalCourt", Prog2.NATURALCOURT_INDEX, 4);
+                catalog.addScanned("issueArea", Prog2.ISSUEAREA_INDEX, 2);
+                checkQueries(db, Prog2.NATURALCOURT_INDEX, 4, prefix -> catalog.query("naturalCourt=" + prefix));
+                checkQueries(db, Prog2.ISSUEAREA_INDEX, 2, prefix -> catalog.query("issueArea=" + prefix));
+                for (String prefix : new String[] {"1a", "", "12345"}) {
+                    TestSupport.checkEquals(0, catalog.query("naturalCourt=" + prefix).size(),
+                            "rows for \"" + prefix + "\"");
+                }
+                TestSupport.checkEquals(0, catalog.query("docket=1").size(), "rows for an unknown column");
+                file.close();
+            });
+        }
+
+        TestSupport.test("a key in more rows than a bucket holds overflows into chained buckets", () -> {
+            List<String> lines = TestSupport.readLines(csvFilename), oneKey = new ArrayList<>(); // rows sharing a key
+            oneKey.add(lines.get(0));
+            for (String line : lines.subList(1, lines.size()))
+                oneKey.add(TestSupport.withField(line, Prog2.Index.KEY_INDEX, ONE_KEY));
+            TestSupport.writeLines("one_key.csv", oneKey);
+            TestSupport.convert("one_key.csv", "one_key.bin");
+            if (!Prog1B.Stats.isEnabled()) Prog1B.Stats.enable(); // counts the reads of the chain
+            RandomAccessFile file = new RandomAccessFile(new File("one_key.bin"), "r");
+            Prog2.BinaryFileDB db = new Prog2.BinaryFileDB(file, true);
+            for (int frames : new int[] {Prog2.HashBucketFile.POOL_FRAMES, 1}) {
+                int defaultFrames = Prog2.HashBucketFile.POOL_FRAMES; // restored after the build
+                Prog2.HashBucketFile.POOL_FRAMES = frames;
+                try {
+                    for (boolean bulkLoad : new boolean[] {true, false}) {
+                        Prog2.Index index = new Prog2.Index(db, bulkLoad);
+                        checkQueries(db, index);
+                        long reads = POOL_READS.get(), visited = BUCKETS_VISITED.get(); // counts before, then during, the queries
+                        for (int length = 1; length <= ONE_KEY.length(); length++) {
+                            TestSupport.checkEquals(db.getNumEntries(), index.query(ONE_KEY.substring(0, length)).size(),
+                                    "rows for " + ONE_KEY.substring(0, length) + (bulkLoad ? ", bulk" : ", inserted"));
+                        }
+                        // read-ahead must never read more often than reading the chain one bucket at a time would
+                        reads = POOL_READS.get() - reads;
+                        visited = BUCKETS_VISITED.get() - visited;
+                        TestSupport.check(reads <= visited, reads + " reads for " + visited + " buckets, " + frames
+                                + " frames");
+                    }
+                } finally {
+                    Prog2.HashBucketFile.POOL_FRAMES = defaultFrames;
+                }
+            }
+            file.close();
+        });
+
+        TestSupport.test("directory runs match a slot array", () -> {
+            Random random = new Random(19);
+            int slots[] = new int[10]; // bucket of every slot, the directory's model
+            Arrays.fill(slots, Prog2.Directory.NO_BUCKET);
+            Prog2.Directory directory = new Prog2.Directory(slots.length);
+            String firstFailure = null; // first step after which the directory and the array disagree
+            for (int step = 0; step < 5000; step++) {
+                if (step % 1000 == 999) { // deepen, as a split at the directory's depth does
+                    int scaled[] = new int[slots.length * 10];
+                    for (int i = 0; i < scaled.length; i++) scaled[i] = slots[i / 10];
+                    slots = scaled;
+                    directory.scale(10);
+                } else {
+                    int from = random.nextInt(slots.length); // first slot set
+                    int to = from + 1 + random.nextInt(Math.min(50, slots.length - from)); // end of the slots set
+                    int bucket = random.nextInt(4) - 1; // few buckets, so runs often merge
+                    Arrays.fill(slots, from, to, bucket);
+                    directory.set(from, to, bucket);
+                }
+                int mismatched = 0; // slots the directory reports differently
+                for (int i = 0; i < slots.length; i++) if (directory.get(i) != slots[i]) mismatched++;
+                int unmerged = 0; // adjacent runs with the same bucket
+                for (int run = 1; run < directory.getNumRuns(); run++)
+                    if (directory.getRunBucket(run) == directory.getRunBucket(run - 1)) unmerged++;
+                if (firstFailure == null && (mismatched > 0 || unmerged > 0 || directory.getNumSlots() != slots.length))
+                    firstFailure = "step " + step + ": " + mismatched + " slots differ, " + unmerged + " runs unmerged, "
+                            + directory.getNumSlots() + " slots";
+            }
+            TestSupport.check(firstFailure == null, firstFailure);
+        });
+
+        for (String args[] : new String[][] {{}, {"--cache-bytes", "1000000"}}) {
+            TestSupport.test("Prog2 prints the queried column" + (args.length == 0 ? "" : ", cached"), () -> {
+                String bin = Prog2.BIN_FILE_NAME; // restored afterwards
+                Prog2.BIN_FILE_NAME = BIN_FILE_NAME;
+                String lines[]; // what Prog2 printed, one entry per line and then the count
+                try {
+                    lines = runProg2("term=1990 issueArea=08 naturalCourt=1705\n", args).split("\n");
+                } finally {
+                    Prog2.BIN_FILE_NAME = bin;
+                }
+                int entries = 0, mismatched = 0, counted = 0; // entry lines, ones ending otherwise, count lines summed
+                String ends[] = {" 1990", " 8", " 1705"}; // value printed last for each query, unpadded
+                int query = 0; // query whose entries are being printed
+                for (int i = 0; i < lines.length && query < ends.length; i++) { // the cache's counters come last
+                    if (lines[i].matches("\\d+")) {
+                        counted += Integer.parseInt(lines[i]);
+                        query++;
+                    } else {
+                        entries++;
+                        if (!lines[i].endsWith(ends[query])) mismatched++;
+                    }
+                }
+                TestSupport.checkEquals(3, query, "queries answered");
+                TestSupport.check(entries > 0, "no entries printed");
+                TestSupport.checkEquals(counted, entries, "entries printed");
+                TestSupport.checkEquals(0, mismatched, "entries printed without the queried value");
+            });
+        }
+
+        TestSupport.test("malformed prefixes match nothing", () -> {
+            RandomAccessFile file = new RandomAccessFile(new File(BIN_FILE_NAME), "r");
+            Prog2.BinaryFileDB db = new Prog2.BinaryFileDB(file, true);
+            Prog2.Index index = new Prog2.Index(db);
+            for (String prefix : new String[] {"", "01a", "-1", " 1", "1234567"})
+                TestSupport.checkEquals(0, index.query(prefix).size(), "rows for \"" + prefix + "\"");
+            file.close();
+        });
+
+        TestSupport.test("reopened index queries match a scan", () -> {
+            RandomAccessFile file = new RandomAccessFile(new File(BIN_FILE_NAME), "r");
+            Prog2.BinaryFileDB db = new Prog2.BinaryFileDB(file, true);
+            new Prog2.Index(db).save(new File(BIN_FILE_NAME));
+            Prog2.Index index = Prog2.Index.open(db, new File(BIN_FILE_NAME)); // index read back from the saved files
+            TestSupport.check(index != null, "saved index was not reopened");
+            if (index != null) checkQueries(db, index);
+            file.close();
+        });
+
+        for (int frames : POOL_FRAMES) {
+            TestSupport.test("index built through a " + frames + "-frame buffer pool matches a scan", () -> {
+                int defaultFrames = Prog2.HashBucketFile.POOL_FRAMES; // restored after the test
+                Prog2.HashBucketFile.POOL_FRAMES = frames;
+                try {
+                    RandomAccessFile file = new RandomAccessFile(new File(BIN_FILE_NAME), "r");
+                    Prog2.BinaryFileDB db = new Prog2.BinaryFileDB(file, true);
+                    for (boolean bulkLoad : new boolean[] {true, false}) {
+                        Prog2.Index index = new Prog2.Index(db, bulkLoad);
+                        checkQueries(db, index);
+                        checkBucketsSorted(index);
+                        Prog2.BufferPool pool = index.getHashBucketFile().getPool();
+                        TestSupport.check(pool.getEvictions() > 0, "no bucket was evicted from " + frames + " frames");
+                    }
+                    file.close();
+                } finally {
+                    Prog2.HashBucketFile.POOL_FRAMES = defaultFrames;
+                }
+            });
+        }
+
+        TestSupport.test("index reopened after an append matches a scan", () -> {
+            List<String> lines = TestSupport.sortByDate(TestSupport.readLines(csvFilename)); // header, then every row
+            List<String> tail = new ArrayList<>(lines.subList(lines.size() - 10, lines.size())); // rows appended
+            tail.add(0, lines.get(0));
+            TestSupport.writeLines("append_head.csv", lines.subList(0, lines.size() - 10));
+            TestSupport.writeLines("append_tail.csv", tail);
+            TestSupport.convert("append_head.csv", "append.bin");
+            RandomAccessFile file = new RandomAccessFile(new File("append.bin"), "r");
+            new Prog2.Index(new Prog2.BinaryFileDB(file, false)).save(new File("append.bin"));
+            file.close();
+
+            Prog1A.Appender appender = new Prog1A.Appender("append.bin");
+            TestSupport.checkEquals(10, appender.append("append_tail.csv"), "rows appended");
+            TestSupport.check(!appender.isRewritten(), "append rewrote the file, so the index is rebuilt");
+            file = new RandomAccessFile(new File("append.bin"), "r");
+            Prog2.BinaryFileDB db = new Prog2.BinaryFileDB(file, true);
+            Prog2.Index index = Prog2.Index.open(db, new File("append.bin")); // saved index plus the appended rows
+            TestSupport.check(index != null, "index was not caught up with the appended rows");
+            if (index != null) checkQueries(db, index);
+            TestSupport.check(Prog2.Index.open(db, new File("append.bin")) != null, "caught up index was not saved");
+            file.close();
+        });
+
+        TestSupport.test("buffer pool pages read back as written", () -> {
+            RandomAccessFile file = TestSupport.open("pool.bin");
+            Random random = new Random(15);
+            int numPages = 100, pageSize = 64; // well past the page table's initial size
+            for (int reopen = 0; reopen < 2; reopen++) {
+                // written through a fresh pool, then read back through one sized from the pages already there
+                Prog2.BufferPool pool = new Prog2.BufferPool(file, pageSize, 3, reopen == 0 ? 0 : numPages);
+                if (reopen == 0) {
+                    for (int page = 0; page < numPages; page++) {
+                        pool.pinNew(page).putInt(0, page * 31);
+                        pool.unpin(page, true);
+                    }
+                    pool.flush();
+                }
+                int mismatched = 0; // pages read back with other contents
+                for (int i = 0; i < 1000; i++) {
+                    int page = random.nextInt(numPages); // page read
+                    if (pool.pin(page).getInt(0) != page * 31) mismatched++;
+                    pool.unpin(page, false);
+                }
+                TestSupport.checkEquals(0, mismatched, "pages that differ" + (reopen == 0 ? "" : ", reopened"));
+                TestSupport.check(pool.getEvictions() > 0, "no page was evicted from 3 frames");
+            }
+            file.close();
+        });
+
+        TestSupport.test("saved index is stale once the bin changes", () -> {
+            TestSupport.convert(csvFilename, "stale_index.bin");
+            RandomAccessFile file = new RandomAccessFile(new File("stale_index.bin"), "rw");
+            Prog2.BinaryFileDB db = new Prog2.BinaryFileDB(file, false);
+            new Prog2.Index(db).save(new File("stale_index.bin"));
+            file.setLength(file.length() + 1);
+            TestSupport.check(Prog2.Index.open(db, new File("stale_index.bin")) == null,
+                    "index of a shorter file was reopened");
+            file.close();
+        });
+
+        TestSupport.test("saved index is stale once a row is rewritten in place", () -> {
+            TestSupport.convert(csvFilename, "stale_index.bin");
+            RandomAccessFile file = new RandomAccessFile(new File("stale_index.bin"), "rw");
+            Prog2.BinaryFileDB db = new Prog2.BinaryFileDB(file, false);
+            new Prog2.Index(db).save(new File("stale_index.bin"));
+            TestSupport.check(Prog2.Index.open(db, new File("stale_index.bin")) != null, "fresh index was not reopened");
+
+            long modified = new File("stale_index.bin").lastModified(); // kept, so only the bytes give the rewrite away
+            long last = file.length() - 1; // last byte of the last row
+            file.seek(last);
+            int original = file.read(); // byte overwritten
+            file.seek(last);
+            file.write(original ^ 1);
+            new File("stale_index.bin").setLastModified(modified);
+            TestSupport.check(Prog2.Index.open(db, new File("stale_index.bin")) == null,
+                    "index of the old contents was reopened");
+            file.close();
+        });
+    }
+
+    /**
+     * Runs Prog2.main with the given standard input.
+     * @return everything it printed
+     */
+    private static String runProg2(String input, String... args) throws Exception {
+        InputStream in = System.in;
+        PrintStream out = System.out;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream(); // Prog2's output
+        try {
+            System.setIn(new ByteArrayInputStream(input.getBytes(StandardCharsets.ISO_8859_1)));
+            System.setOut(new PrintStream(printed, true));
+            Prog2.main(args);
+        } finally {
+            System.setIn(in);
+            System.setOut(out);
+        }
+        return new String(printed.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Checks prefixes of issue keys found in the DB, plus keys it does not hold, against a scan.
+     */
+    private static void checkQueries(Prog2.BinaryFileDB db, Prog2.Index index) {
+        checkQueries(db, Prog2.Index.KEY_INDEX, Prog2.Index.KEY_DIGITS, index::query);
+    }
+
+    /**
+     * Checks prefixes of a column's keys found in the DB, plus keys it does not hold, against a scan.
+     * @param keyIndex field queried
+     * @param keyDigits digits the column's keys are zero-padded to
+     * @param query answers a prefix of the column
+     */
+    private static void checkQueries(Prog2.BinaryFileDB db, int keyIndex, int keyDigits,
+                                     Function<String, List<Object[]>> query) {
+        Set<String> prefixes = new LinkedHashSet<>(); // prefixes queried
+        for (int i = 0; i < db.getNumEntries(); i += PREFIX_STRIDE) {
+            String key = keyOf(db.get(i)[keyIndex], keyDigits); // null if the row has no key
+            for (int length = 1; key != null && length <= key.length(); length++) prefixes.add(key.substring(0, length));
+        }
+        String zeros = String.format("%0" + keyDigits + "d", 0), nines = zeros.replace('0', '9'); // absent keys, likely
+        prefixes.addAll(Arrays.asList(zeros, "9", nines.substring(0, Math.min(2, keyDigits)), nines));
+        for (String prefix : prefixes) {
+            List<String> expected = new ArrayList<>(); // rows a scan finds
+            for (int i = 0; i < db.getNumEntries(); i++) {
+                String key = keyOf(db.get(i)[keyIndex], keyDigits);
+                if (key != null && key.startsWith(prefix))
+                    expected.add(Arrays.toString(db.get(i, Prog2.printedFields(keyIndex))));
+            }
+            List<String> found = new ArrayList<>(); // rows the query returns
+            for (Object[] row : query.apply(prefix)) found.add(Arrays.toString(row));
+            Collections.sort(expected);
+            Collections.sort(found);
+            TestSupport.check(expected.equals(found), "field " + keyIndex + " prefix " + prefix + " returned "
+                    + found.size() + " rows, a scan finds " + expected.size());
+        }
+    }
+
+    /**
+     * Checks that every bucket holds its keys in ascending order, as the range scans of a query rely on.
+     */
+    private static void checkBucketsSorted(Prog2.Index index) {
+        Prog2.HashBucketFile buckets = index.getHashBucketFile();
+        int unsorted = 0; // buckets with a key below the one before it
+        for (int b = 0; b < buckets.getNumBuckets(); b++) {
+            int keys[] = buckets.getBucket(b).getKeys();
+            for (int i = 1; i < keys.length; i++) {
+                if (keys[i] < keys[i - 1]) {
+                    unsorted++;
+                    break;
+                }
+            }
+        }
+        TestSupport.checkEquals(0, unsorted, "unsorted buckets");
+    }
+
+    /**
+     * @return the digits a query prefix is matched against: the key zero-padded to the column's digits, or null for a
+     * blank or a value the index cannot hold
+     */
+    private static String keyOf(Object value, int keyDigits) {
+        if (!(value instanceof Integer) || (Integer) value < 0) return null;
+        String key = String.format("%0" + keyDigits + "d", (Integer) value);
+        return key.length() == keyDigits ? key : null;
+    }
+}
@@ -0,0 +1,367 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Regression tests for Prog1B's lookups
+ * @author Bohan Li
+ * Course: CSC 460
+ * Instructor: Lester McCann
+ *
+ * Rows read through a memory mapping must decode exactly as rows read through the RandomAccessFile, and date queries
+ * must return the same rows either way. Dates stored as epoch days must decode to the kept rows' dates, and a query by
+ * epoch day must find every row decided that day. Threads sharing one DB must read the same rows as a single thread
+ * does. Rows served by the row cache must equal rows read from the file, and the cache must stay within its capacity. A
+ * projection equal to a cached one must hit, and a cached full row must not be replaced by a projection. Batched
+ * fetches must return the rows get() does, in the order asked for, from either layout. Date and date range queries must
+ * return exactly the rows a scan of every row finds, whether the search probes the fence index or the file, and a fence
+ * sidecar must be rejected once the .bin changes length. Row views must report every field as get() does, and scans and
+ * queries through views must visit the rows in order. Stats must record nothing until enabled, then count every get,
+ * and report percentiles within about 6% of the true value.
+ *
+ * System requirements: Java 8
+ */
+public class LookupTest {
+    private static final int QUERY_STRIDE = 251; // every this many rows, the row's date is queried
+    private static final int STATS_GETS = 100; // gets made with stats off, then on
+    private static final int THREADS = 8, READS_PER_THREAD = 20000; // concurrent readers and the gets each makes
+
+    public static void run(String csvFilename) throws Exception {
+        TestSupport.convert(csvFilename, "lookup.bin");
+
+        TestSupport.test("mapped reads match channel reads", () -> {
+            RandomAccessFile channelFile = new RandomAccessFile(new File("lookup.bin"), "r");
+            RandomAccessFile mappedFile = new RandomAccessFile(new File("lookup.bin"), "r");
+            Prog1B.BinaryFileDB channel = new Prog1B.BinaryFileDB(channelFile, false);
+            Prog1B.BinaryFileDB mapped = new Prog1B.BinaryFileDB(mappedFile, true);
+            TestSupport.checkEquals(channel.getNumEntries(), mapped.getNumEntries(), "row count");
+            int mismatched = 0; // rows decoded differently
+            for (int i = 0; i < channel.getNumEntries(); i++) if (!Arrays.equals(channel.get(i), mapped.get(i))) mismatched++;
+            TestSupport.checkEquals(0, mismatched, "rows that differ");
+
+            for (int i = 0; i < channel.getNumEntries(); i += QUERY_STRIDE) {
+                Date date = Prog1A.Data.DATE_FORMAT.parse(((String) channel.get(i)[Prog1B.DATEDECISION_INDEX]).trim());
+                List<Object[]> expected = channel.query(date, 0, channel.getNumEntries());
+                List<Object[]> actual = mapped.query(date, 0, mapped.getNumEntries());
+                TestSupport.checkEquals(expected.size(), actual.size(), "rows on " + date);
+                for (int j = 0; j < Math.min(expected.size(), actual.size()); j++)
+                    TestSupport.check(Arrays.equals(expected.get(j), actual.get(j)), "row " + j + " on " + date + " differs");
+            }
+            channelFile.close();
+            mappedFile.close();
+        });
+
+        TestSupport.test("typed dates decode to the kept rows' dates", () -> {
+            RandomAccessFile file = new RandomAccessFile(new File("lookup.bin"), "r");
+            Prog1B.BinaryFileDB db = new Prog1B.BinaryFileDB(file);
+            List<Integer> days = new ArrayList<>(); // decision day of every kept row, from out.csv
+            Prog1A.CsvTokenizer kept = new Prog1A.CsvTokenizer(new FileReader("out.csv"));
+            while (kept.next())
+                days.add(Prog1A.Schema.toEpochDay(Prog1A.Data.DATE_FORMAT.parse(kept.getField(Prog1B.DATEDECISION_INDEX))));
+            kept.close();
+            TestSupport.checkEquals(days.size(), db.getNumEntries(), "row count");
+            int mismatched = 0; // rows whose date decodes to another day
+            for (int i = 0; i < db.getNumEntries(); i++) {
+                String text = ((String) db.get(i)[Prog1B.DATEDECISION_INDEX]).trim(); // date as get() reports it
+                if (Prog1A.Schema.toEpochDay(Prog1A.Data.DATE_FORMAT.parse(text)) != days.get(i)) mismatched++;
+            }
+            TestSupport.checkEquals(0, mismatched, "dates that differ");
+            for (int i = 0; i < days.size(); i += QUERY_STRIDE) {
+                int day = days.get(i), expected = 0; // rows decided on day
+                for (int other : days) if (other == day) expected++;
+                TestSupport.checkEquals(expected, db.query(day, 0, db.getNumEntries()).size(), "rows on day " + day);
+            }
+            file.close();
+        });
+
+        for (boolean memoryMapped : new boolean[] {false, true}) {
+            TestSupport.test("concurrent reads match sequential reads, " + (memoryMapped ? "mapped" : "channel"), () -> {
+                RandomAccessFile file = new RandomAccessFile(new File("lookup.bin"), "r");
+                Prog1B.BinaryFileDB db = new Prog1B.BinaryFileDB(file, memoryMapped);
+                Object[][] rows = new Object[db.getNumEntries()][]; // every row, read by one thread
+                for (int i = 0; i < rows.length; i++) rows[i] = db.get(i);
+                AtomicInteger mismatched = new AtomicInteger(); // reads that differ from the sequential ones
+                Thread threads[] = new Thread[THREADS];
+                for (int t = 0; t < THREADS; t++) {
+                    Random random = new Random(t); // this thread's rows
+                    threads[t] = new Thread(() -> {
+                        for (int read = 0; read < READS_PER_THREAD; read++) {
+                            int index = random.nextInt(rows.length); // row read
+                            if (!Arrays.equals(rows[index], db.get(index))) mismatched.incrementAndGet();
+                        }
+                    });
+                    threads[t].start();
+                }
+                for (Thread thread : threads) thread.join();
+                TestSupport.checkEquals(0, mismatched.get(), "concurrent reads that differ");
+                file.close();
+            });
+        }
+
+        TestSupport.test("cached rows match uncached rows and the cache stays within capacity", () -> {
+            RandomAccessFile file = new RandomAccessFile(new File("lookup.bin"), "r");
+            RandomAccessFile cachedFile = new RandomAccessFile(new File("lookup.bin"), "r");
+            Prog1B.BinaryFileDB db = new Prog1B.BinaryFileDB(file), cached = new Prog1B.BinaryFileDB(cachedFile);
+            long capacity = 1 << 20; // bytes, well under the size of every row decoded
+            cached.setCache(new Prog1B.RowCache(capacity));
+            int mismatched = 0; // rows the cached DB reports differently
+            for (int pass = 0; pass < 2; pass++) {
+                for (int i = 0; i < db.getNumEntries(); i++) {
+                    if (!Arrays.equals(db.get(i), cached.get(i))) mismatched++;
+                    // a projection may be served from a cached full row, so only the projected fields must match
+                    Object[] row = db.get(i, Prog1B.PRINTED_FIELDS), cachedRow = cached.get(i, Prog1B.PRINTED_FIELDS);
+                    for (int field : Prog1B.PRINTED_FIELDS) if (!row[field].equals(cachedRow[field])) mismatched++;
+                }
+            }
+            TestSupport.checkEquals(0, mismatched, "rows that differ");
+            Prog1B.RowCache cache = cached.getCache();
+            TestSupport.check(cache.getHits() > 0, "no lookup hit the cache");
+            TestSupport.check(cache.getEvictions() > 0, "no row was evicted");
+            TestSupport.check(cache.getSizeBytes() <= capacity, cache.getSizeBytes() + " bytes held, capacity " + capacity);
+            TestSupport.check(cached.get(3) == cached.get(3), "repeated get decoded the row again");
+            file.close();
+            cachedFile.close();
+        });
+
+        TestSupport.test("cache matches projections by value and keeps full rows", () -> {
+            Prog1B.RowCache cache = new Prog1B.RowCache(1 << 20);
+            Object[] projected = {"a", null, "c"}, full = {"a", "b", "c"}; // rows as decoded
+            cache.put(1, new int[] {0, 2}, projected, 100);
+            TestSupport.check(cache.get(1, new int[] {0, 2}) == projected, "an equal projection missed");
+            TestSupport.check(cache.get(1, new int[] {0, 1}) == null, "another projection hit");
+            cache.put(2, new int[] {0, 1, 2}, full, 100);
+            cache.put(2, new int[] {0, 2}, projected, 100);
+            TestSupport.check(cache.get(2, new int[] {0, 1, 2}) == full, "a projection replaced the full row");
+            TestSupport.check(cache.get(2, new int[] {1}) == full, "the full row did not serve a projection");
+        });
+
+        TestSupport.test("batched fetches match single gets", () -> {
+            RandomAccessFile output = TestSupport.open("lookup.columns.bin");
+            new Prog1A.Data(csvFilename).outputToColumnarBin(output);
+            output.close();
+            for (String filename : new String[] {"lookup.bin", "lookup.columns.bin"}) {
+                for (boolean memoryMapped : new boolean[] {false, true}) {
+                    RandomAccessFile file = new RandomAccessFile(new File(filename), "r");
+                    Prog1B.BinaryFileDB db = new Prog1B.BinaryFileDB(file, memoryMapped);
+                    Random random = new Random(10);
+                    int indices[] = new int[2000]; // rows fetched: scattered, in runs, and repeated
+                    for (int i = 0; i < indices.length; i++)
+                        indices[i] = i % 3 == 0 ? random.nextInt(db.getNumEntries()) : i % 3 == 1 ? i : indices[i / 2];
+                    Object[][] rows = db.getAll(indices), projected = db.getAll(indices, Prog1B.PRINTED_FIELDS);
+                    int mismatched = 0; // rows that differ from get()
+                    for (int i = 0; i < indices.length; i++) {
+                        if (!Arrays.equals(db.get(indices[i]), rows[i])) mismatched++;
+                        if (!Arrays.equals(db.get(indices[i], Prog1B.PRINTED_FIELDS), projected[i])) mismatched++;
+                    }
+                    TestSupport.checkEquals(0, mismatched, "rows that differ in " + filename + (memoryMapped ? ", mapped" : ""));
+                    file.close();
+                }
+            }
+        });
+
+        for (boolean memoryMapped : new boolean[] {false, true}) {
+            for (boolean fenced : new boolean[] {false, true}) {
+                String mode = (memoryMapped ? "mapped" : "channel") + (fenced ? " with fences" : " without fences");
+                TestSupport.test("date queries match a scan, " + mode, () -> {
+                    RandomAccessFile file = new RandomAccessFile(new File("lookup.bin"), "r");
+                    Prog1B.BinaryFileDB db = new Prog1B.BinaryFileDB(file, memoryMapped);
+                    if (fenced) {
+                        db.loadFences("lookup.bin");
+                        TestSupport.check(db.getFences() != null, "fence sidecar was not loaded");
+                    }
+                    int days[] = new int[db.getNumEntries()]; // decision day of every row, read one row at a time
+                    for (int i = 0; i < days.length; i++) days[i] = db.getDecisionDay(i);
+                    List<Integer> queried = new ArrayList<>(); // days to query: some present, some absent
+                    for (int i = 0; i < days.length; i += QUERY_STRIDE) queried.add(days[i]);
+                    queried.addAll(Arrays.asList(days[0] - 1, days[0], days[days.length - 1],
+                            days[days.length - 1] + 1, days[days.length / 2] + 1));
+                    int fields[] = Prog1B.PRINTED_FIELDS; // projection of the projected queries
+                    for (int day : queried) {
+                        checkRows(db, days, day, day, null, db.query(day, 0, db.getNumEntries()));
+                        checkRows(db, days, day, day, fields, db.query(day, 0, db.getNumEntries(), fields));
+                        checkRows(db, days, day - 30, day + 30, null,
+                                db.queryRange(toDate(day - 30), toDate(day + 30)));
+                        checkRows(db, days, day - 30, day + 30, fields, db.queryRange(day - 30, day + 30, fields));
+                    }
+                    checkRows(db, days, days[0], days[days.length - 1], null,
+                            db.queryRange(toDate(days[0]), toDate(days[days.length - 1])));
+                    file.close();
+                });
+            }
+        }
+
+        TestSupport.test("queries that are not one date or a two-date range are rejected", () -> {
+            String queries[] = {"11/18/1946", "1/1/1950-12/31/1950", "1/2/1950x", "1/1/1950-1/2/1950-1/3/1950", "a-b-c",
+                    "1/1/1950-", "-1/1/1950"}; // two queries, then the malformed ones
+            String output = runProg1B(String.join("\n", queries) + "\n", "lookup.bin");
+            String usage = "Please enter a date in the form MM/dd/yyyy"; // printed once per rejected query
+            TestSupport.checkEquals(queries.length - 2, output.split(usage, -1).length - 1, "queries rejected");
+        });
+
+        TestSupport.test("fence sidecar is stale once the bin changes length", () -> {
+            TestSupport.convert(csvFilename, "stale.bin");
+            RandomAccessFile file = new RandomAccessFile(new File("stale.bin"), "rw");
+            file.setLength(file.length() + 1);
+            Prog1B.BinaryFileDB db = new Prog1B.BinaryFileDB(file);
+            db.loadFences("stale.bin");
+            TestSupport.check(db.getFences() == null, "sidecar of a shorter file was loaded");
+            file.close();
+        });
+
+        TestSupport.test("fence sidecar is stale after a same-length rewrite", () -> {
+            TestSupport.convert(csvFilename, "stale.bin");
+            RandomAccessFile file = new RandomAccessFile(new File("stale.bin"), "rw");
+            Prog1B.BinaryFileDB db = new Prog1B.BinaryFileDB(file);
+            db.loadFences("stale.bin");
+            TestSupport.check(db.getFences() != null, "fresh sidecar was not loaded");
+
+            long modified = new File("stale.bin").lastModified(); // kept, so only the bytes give the rewrite away
+            long last = file.length() - 1; // last byte of the last row
+            file.seek(last);
+            int original = file.read(); // byte overwritten
+            file.seek(last);
+            file.write(original ^ 1);
+            new File("stale.bin").setLastModified(modified);
+            db.loadFences("stale.bin");
+            TestSupport.check(db.getFences() == null, "sidecar of the old contents was loaded");
+
+            file.seek(last);
+            file.write(original);
+            new File("stale.bin").setLastModified(modified);
+            db.loadFences("stale.bin");
+            TestSupport.check(db.getFences() != null, "sidecar was not loaded once the contents were restored");
+            file.close();
+        });
+
+        for (String filename : new String[] {"lookup.bin", "lookup.columns.bin"}) {
+            for (boolean memoryMapped : new boolean[] {false, true}) {
+                String mode = filename + (memoryMapped ? ", mapped" : ", channel");
+                TestSupport.test("row views decode like get, " + mode, () -> {
+                    RandomAccessFile file = new RandomAccessFile(new File(filename), "r");
+                    Prog1B.BinaryFileDB db = new Prog1B.BinaryFileDB(file, memoryMapped);
+                    Prog1B.RowView view = db.newView();
+                    int mismatched = 0; // fields a view reports differently from get()
+                    for (int i = 0; i < db.getNumEntries(); i++) mismatched += compare(db.get(i), db.getView(i, view));
+                    TestSupport.checkEquals(0, mismatched, "fields that differ");
+
+                    int expected[] = {0}; // next row the scan must visit
+                    db.scan(0, db.getNumEntries(), row -> expected[0] += row.getIndex() == expected[0] ? 1 : 0);
+                    TestSupport.checkEquals(db.getNumEntries(), expected[0], "rows scanned in order");
+
+                    mismatched = 0;
+                    for (int i = 0; i < db.getNumEntries(); i += QUERY_STRIDE * 4) {
+                        int day = db.getDecisionDay(i); // first day of the range queried
+                        List<Object[]> rows = db.queryRange(day, day + 30); // decoded rows of the range
+                        List<Object[]> viewed = new ArrayList<>(); // the same range through views
+                        db.query(day, day + 30, row -> viewed.add(db.get(row.getIndex())));
+                        TestSupport.checkEquals(rows.size(), viewed.size(), "rows viewed from day " + day);
+                        for (int j = 0; j < Math.min(rows.size(), viewed.size()); j++)
+                            if (!Arrays.equals(rows.get(j), viewed.get(j))) mismatched++;
+                    }
+                    TestSupport.checkEquals(0, mismatched, "viewed query rows that differ");
+                    file.close();
+                });
+            }
+        }
+
+        TestSupport.test("stats record reads only once enabled", () -> {
+            RandomAccessFile file = new RandomAccessFile(new File("lookup.bin"), "r");
+            Prog1B.BinaryFileDB db = new Prog1B.BinaryFileDB(file);
+            Prog1B.Stats.Counter decoded = Prog1B.Stats.counter("db.rowsDecoded"); // rows decoded by get
+            Prog1B.Stats.Histogram gets = Prog1B.Stats.histogram("db.get"); // latency of get
+            if (!Prog1B.Stats.isEnabled()) {
+                long decodedBefore = decoded.get(), getsBefore = gets.getCount(); // counts before the gets
+                for (int i = 0; i < STATS_GETS; i++) db.get(i);
+                TestSupport.checkEquals(decodedBefore, decoded.get(), "rows decoded while stats are off");
+                TestSupport.checkEquals(getsBefore, gets.getCount(), "gets timed while stats are off");
+                Prog1B.Stats.enable();
+            }
+            long decodedBefore = decoded.get(), getsBefore = gets.getCount(); // counts before the gets
+            for (int i = 0; i < STATS_GETS; i++) db.get(i);
+            TestSupport.checkEquals(decodedBefore + STATS_GETS, decoded.get(), "rows decoded");
+            TestSupport.checkEquals(getsBefore + STATS_GETS, gets.getCount(), "gets timed");
+            TestSupport.check(gets.getPercentile(0.5) <= gets.getMax(), "median get above the slowest");
+            TestSupport.check(Prog1B.Stats.report().contains("db.get"), "report has no get latencies");
+            file.close();
+        });
+
+        TestSupport.test("latency percentiles are within the histogram's resolution", () -> {
+            if (!Prog1B.Stats.isEnabled()) Prog1B.Stats.enable();
+            Prog1B.Stats.Histogram histogram = new Prog1B.Stats.Histogram();
+            for (long nanos = 1; nanos <= 100000; nanos++) histogram.record(nanos);
+            for (double quantile : new double[] {0.5, 0.99, 0.999}) {
+                long expected = Math.round(quantile * 100000), actual = histogram.getPercentile(quantile);
+                TestSupport.check(actual >= expected && actual <= expected * 1.07,
+                        "p" + quantile + " is " + actual + ", expected " + expected);
+            }
+            TestSupport.checkEquals(100000L, histogram.getMax(), "max");
+        });
+    }
+
+    /**
+     * Checks a query's rows against the rows a scan of the days finds between two days, both inclusive.
+     * @param fields fields the query decoded, or null for whole rows
+     */
+    private static void checkRows(Prog1B.BinaryFileDB db, int days[], int from, int to, int fields[],
+                                  List<Object[]> rows) {
+        List<Object[]> expected = new ArrayList<>(); // every row in the range, in file order
+        for (int i = 0; i < days.length; i++)
+            if (days[i] >= from && days[i] <= to) expected.add(fields == null ? db.get(i) : db.get(i, fields));
+        TestSupport.checkEquals(expected.size(), rows.size(), "rows from " + from + " to " + to);
+        for (int i = 0; i < Math.min(expected.size(), rows.size()); i++) {
+            if (!Arrays.equals(expected.get(i), rows.get(i))) {
+                TestSupport.check(false, "row " + i + " from " + from + " to " + to + " differs");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs Prog1B.main with the given standard input.
+     * @return everything it printed
+     */
+    private static String runProg1B(String input, String... args) throws Exception {
+        InputStream in = System.in;
+        PrintStream out = System.out;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream(); // Prog1B's output
+        try {
+            System.setIn(new ByteArrayInputStream(input.getBytes(StandardCharsets.ISO_8859_1)));
+            System.setOut(new PrintStream(printed, true));
+            Prog1B.main(args);
+        } finally {
+            System.setIn(in);
+            System.setOut(out);
+        }
+        return new String(printed.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return the number of fields a view reports differently from the decoded row
+     */
+    private static int compare(Object[] row, Prog1B.RowView view) {
+        int mismatched = 0; // fields that differ
+        for (int field = 0; field < row.length; field++) {
+            if (!row[field].toString().equals(view.getString(field))) mismatched++;
+            if (view.isInt(field) && !row[field].equals(view.getInt(field))) mismatched++;
+        }
+        return mismatched;
+    }
+
+    /**
+     * @return the epoch day as a Date, as the prompt parses it
+     */
+    private static Date toDate(int day) throws Exception {
+        return Prog1A.Data.DATE_FORMAT.parse(Prog1A.Schema.formatEpochDay(day));
+    }
+}
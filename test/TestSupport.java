@@ -0,0 +1,167 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Shared helpers for the regression tests
+ * @author Bohan Li
+ * Course: CSC 460
+ * Instructor: Lester McCann
+ *
+ * The tests are plain Java programs, like the assignment's programs: each test class has a run method that reports
+ * every failed check here, and AllTests runs them all and exits with a non-zero status if any check failed. Files a
+ * test writes go to the working directory, since Prog1A writes out.csv and Prog2 its hash files there.
+ *
+ * System requirements: Java 8
+ */
+public class TestSupport {
+    private static int checks, failures; // checks made and failed so far
+    private static String currentTest = ""; // name of the test running, for failure messages
+
+    /**
+     * Runs one named test, counting an exception it throws as a failure.
+     */
+    public static void test(String name, TestBody body) {
+        currentTest = name;
+        int failuresBefore = failures; // failures of earlier tests
+        try {
+            body.run();
+        } catch (Exception | AssertionError ex) {
+            fail("threw " + ex);
+            ex.printStackTrace();
+        }
+        System.out.println((failures == failuresBefore ? "PASS " : "FAIL ") + name);
+    }
+
+    public interface TestBody {
+        void run() throws Exception;
+    }
+
+    public static void check(boolean condition, String message) {
+        checks++;
+        if (!condition) fail(message);
+    }
+
+    public static void checkEquals(Object expected, Object actual, String message) {
+        check(expected == null ? actual == null : expected.equals(actual),
+                message + ": expected " + expected + ", got " + actual);
+    }
+
+    /**
+     * Checks that two files hold the same bytes.
+     */
+    public static void checkSameFile(String expected, String actual) throws IOException {
+        byte expectedBytes[] = Files.readAllBytes(Paths.get(expected)), actualBytes[] = Files.readAllBytes(Paths.get(actual));
+        int differ = 0; // first byte that differs
+        while (differ < Math.min(expectedBytes.length, actualBytes.length) && expectedBytes[differ] == actualBytes[differ])
+            differ++;
+        check(Arrays.equals(expectedBytes, actualBytes), actual + " differs from " + expected + " at byte " + differ
+                + " (lengths " + expectedBytes.length + " and " + actualBytes.length + ")");
+    }
+
+    private static void fail(String message) {
+        failures++;
+        System.out.println("  " + currentTest + ": " + message);
+    }
+
+    public static int getChecks() {
+        return checks;
+    }
+
+    public static int getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return the records of a CSV file, one per line, header included; the tests' CSVs have no quoted line breaks
+     */
+    public static List<String> readLines(String csvFilename) throws IOException {
+        List<String> lines = new ArrayList<>(Files.readAllLines(Paths.get(csvFilename), StandardCharsets.ISO_8859_1));
+        while (!lines.isEmpty() && lines.get(lines.size() - 1).isEmpty()) lines.remove(lines.size() - 1);
+        return lines;
+    }
+
+    /**
+     * @return the header, then the rows in order of decision date, so that the converters keep every row; rows with
+     * the same date keep their order
+     */
+    public static List<String> sortByDate(List<String> lines) {
+        List<String> rows = new ArrayList<>(lines.subList(1, lines.size())); // every line but the header
+        rows.sort(Comparator.comparingInt(line -> {
+            String date[] = line.split(",", -1)[Prog1B.DATEDECISION_INDEX].split("/"); // month, day, year
+            return Integer.parseInt(date[2]) * 10000 + Integer.parseInt(date[0]) * 100 + Integer.parseInt(date[1]);
+        }));
+        rows.add(0, lines.get(0));
+        return rows;
+    }
+
+    /**
+     * Writes lines as a CSV file, each ended by a line feed.
+     */
+    public static void writeLines(String csvFilename, List<String> lines) throws IOException {
+        StringBuilder text = new StringBuilder(); // contents of the file
+        for (String line : lines) text.append(line).append('\n');
+        Files.write(Paths.get(csvFilename), text.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Converts a CSV with Prog1A's in-memory converter, as Prog1A does without options, fence sidecar included.
+     */
+    public static void convert(String csvFilename, String binFilename) throws IOException {
+        RandomAccessFile output = open(binFilename);
+        new Prog1A.Data(csvFilename).outputToBin(output);
+        output.close();
+        Prog1B.FenceIndex.writeFor(binFilename);
+    }
+
+    /**
+     * @return the file opened for writing and emptied
+     */
+    public static RandomAccessFile open(String filename) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(new File(filename), "rw");
+        file.setLength(0);
+        return file;
+    }
+
+    /**
+     * @return the CSV line with a quoted run of length x's in place of the given field
+     */
+    public static String withLongField(String line, int field, int length) {
+        StringBuilder value = new StringBuilder("\""); // the long value, quoted like the rest of the file
+        for (int i = 0; i < length; i++) value.append('x');
+        return withField(line, field, value.append('"').toString());
+    }
+
+    /**
+     * @return the CSV line with text after its decision date, which the lenient Data.DATE_FORMAT still reads as that
+     * date but which is not a whole M/d/yyyy date, so no converter keeps the row
+     */
+    public static String withMalformedDate(String line, int variant) {
+        String suffixes[] = {"x", " 10:00", "/2"}; // text after the date
+        String date = line.split(",", -1)[Prog1B.DATEDECISION_INDEX]; // the row's decision date
+        return withField(line, Prog1B.DATEDECISION_INDEX, date + suffixes[variant % suffixes.length]);
+    }
+
+    /**
+     * @return the CSV line with the given text in place of a field; quoted commas do not end a field
+     */
+    public static String withField(String line, int field, String value) {
+        int start = 0, current = 0; // start of the current field and its number
+        boolean quoted = false; // inside a quoted value
+        for (int i = 0; i <= line.length(); i++) {
+            if (i < line.length() && line.charAt(i) == '"') quoted = !quoted;
+            else if (i == line.length() || line.charAt(i) == ',' && !quoted) {
+                if (current++ == field) return line.substring(0, start) + value + line.substring(i);
+                start = i + 1;
+            }
+        }
+        throw new IllegalArgumentException("line has no field " + field);
+    }
+}